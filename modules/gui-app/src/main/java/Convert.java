@@ -0,0 +1,65 @@
+import Engine.BinaryEdges;
+import Engine.EdgeBuffer;
+import Engine.EdgeWriter;
+import TN93.TN93;
+import picocli.CommandLine;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+@CommandLine.Command(name = "convert", mixinStandardHelpOptions = true,
+        description = "Converts a binary edge list (--binary) to the Source,Target,Distance CSV edge list")
+public class Convert implements Runnable {
+    @CommandLine.Option(names={"-o", "--outFile"}, description="CSV output file", paramLabel = "FILE")
+    private File outputFile;
+    @CommandLine.Option(names={"-S", "--stdout"}, description="write the CSV to stdout. Alternative to writing to a file (-o)", defaultValue = "false")
+    private boolean use_stdout;
+    @CommandLine.Parameters(paramLabel = "FILE", description = "binary edge list")
+    private File inputFile;
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
+
+    public void run() {
+        if (inputFile == null || outputFile == null && !use_stdout)
+            throw new CommandLine.ParameterException(spec.commandLine(), "Give the binary edge list and -o or -S");
+        try {
+            BinaryEdges edges = BinaryEdges.open(inputFile);
+            EdgeWriter writer = use_stdout ? new EdgeWriter(System.out, false)
+                    : new EdgeWriter(new BufferedOutputStream(new FileOutputStream(outputFile)), true);
+            try {
+                convert(edges, writer);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Distances are written as the text output writes them: integers for SNP, %f for TN93.
+     * TN93 distances went through float32, so the last decimal can differ from a CSV run.
+     */
+    static void convert(BinaryEdges edges, EdgeWriter writer) {
+        List<String> names = edges.getNames();
+        boolean integers = edges.hasIntegerDistances();
+        writer.writeLine(Merge.HEADER);
+        EdgeBuffer report = writer.buffer();
+        for (long k = 0; k < edges.size(); ++k) {
+            report.append(names.get(edges.source(k))).append(',').append(names.get(edges.target(k))).append(',');
+            if (integers)
+                report.appendInt((long) edges.distance(k));
+            else
+                report.appendDecimal(edges.distance(k), TN93.DECIMALS);
+            report.newLine();
+            if (report.isFull()) {
+                writer.write(report);
+                report = writer.buffer();
+            }
+        }
+        writer.write(report);
+    }
+}
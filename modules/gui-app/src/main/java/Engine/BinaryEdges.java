@@ -0,0 +1,176 @@
+package Engine;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary edge list, little-endian throughout:
+ * <pre>
+ * "SRUEDGES"                          8 bytes
+ * version, flags, name count          int32 each; flag 1: distances are integers (SNP)
+ * per name: byte length, UTF-8 bytes  int32, bytes
+ * per edge: source, target, distance  int32, int32, float32, to the end of the file
+ * </pre>
+ * Sources and targets index the name table. Records have a fixed width, so a file cut at any
+ * record boundary (checkpoints) or several files with the same name table (shards) stay valid.
+ * open() maps the records, so reading even a large list is instant.
+ */
+public class BinaryEdges {
+    final static byte[] MAGIC = "SRUEDGES".getBytes(StandardCharsets.US_ASCII);
+    final static int VERSION = 1;
+    public final static int INTEGER_DISTANCES = 1;
+    public final static int RECORD_BYTES = 12;
+    // Records per mapped chunk, so files over 2GB map as several buffers
+    final static int CHUNK_RECORDS = 1 << 26;
+
+    private final List<String> names;
+    private final int flags;
+    private final long headerBytes;
+    private final long size;
+    private final MappedByteBuffer[] chunks;
+
+    private BinaryEdges(List<String> names, int flags, long headerBytes, long size, MappedByteBuffer[] chunks) {
+        this.names = names;
+        this.flags = flags;
+        this.headerBytes = headerBytes;
+        this.size = size;
+        this.chunks = chunks;
+    }
+
+    /**
+     * The header of an edge list with the given name table.
+     */
+    public static byte[] header(List<String> names, int flags) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MAGIC, 0, MAGIC.length);
+        writeInt(out, VERSION);
+        writeInt(out, flags);
+        writeInt(out, names.size());
+        for (String name : names) {
+            byte[] b = name.getBytes(StandardCharsets.UTF_8);
+            writeInt(out, b.length);
+            out.write(b, 0, b.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * True when file starts like a binary edge list.
+     */
+    public static boolean isBinary(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] b = new byte[MAGIC.length];
+            int n = 0, r;
+            while (n < b.length && (r = in.read(b, n, b.length - n)) > 0) n += r;
+            return n == b.length && Arrays.equals(b, MAGIC);
+        }
+    }
+
+    public static BinaryEdges open(File file) throws IOException {
+        List<String> names = new ArrayList<>();
+        int flags;
+        long headerBytes;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException(file + " is not a binary edge list");
+            if (readInt(in) != VERSION) throw new IOException(file + " is a binary edge list of another version");
+            flags = readInt(in);
+            int count = readInt(in);
+            headerBytes = MAGIC.length + 12;
+            for (int i = 0; i < count; ++i) {
+                byte[] b = new byte[readInt(in)];
+                in.readFully(b);
+                names.add(new String(b, StandardCharsets.UTF_8));
+                headerBytes += 4 + b.length;
+            }
+        } catch (EOFException e) {
+            throw new IOException(file + " ends inside its header", e);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long bytes = channel.size() - headerBytes;
+            if (bytes % RECORD_BYTES != 0) throw new IOException(file + " ends inside a record");
+            long size = bytes / RECORD_BYTES;
+            MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((size + CHUNK_RECORDS - 1) / CHUNK_RECORDS)];
+            for (int c = 0; c < chunks.length; ++c) {
+                long first = (long) c * CHUNK_RECORDS;
+                long records = Math.min(CHUNK_RECORDS, size - first);
+                chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, headerBytes + first * RECORD_BYTES, records * RECORD_BYTES);
+                chunks[c].order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return new BinaryEdges(names, flags, headerBytes, size, chunks);
+        }
+    }
+
+    public List<String> getNames() {
+        return names;
+    }
+
+    public boolean hasIntegerDistances() {
+        return (flags & INTEGER_DISTANCES) != 0;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * Bytes before the first record.
+     */
+    public long getHeaderBytes() {
+        return headerBytes;
+    }
+
+    /**
+     * Number of edges.
+     */
+    public long size() {
+        return size;
+    }
+
+    public int source(long k) {
+        return chunk(k).getInt(offset(k));
+    }
+
+    public int target(long k) {
+        return chunk(k).getInt(offset(k) + 4);
+    }
+
+    public float distance(long k) {
+        return chunk(k).getFloat(offset(k) + 8);
+    }
+
+    private ByteBuffer chunk(long k) {
+        return chunks[(int) (k / CHUNK_RECORDS)];
+    }
+
+    private static int offset(long k) {
+        return (int) (k % CHUNK_RECORDS) * RECORD_BYTES;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int v) {
+        out.write(v);
+        out.write(v >>> 8);
+        out.write(v >>> 16);
+        out.write(v >>> 24);
+    }
+
+    private static int readInt(DataInputStream in) throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+}
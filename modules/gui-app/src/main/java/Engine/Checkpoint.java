@@ -0,0 +1,102 @@
+package Engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Progress of an all-vs-all run: the first tilesDone tiles are complete and their edges make up
+ * the first outputBytes of the output file, which was synced to disk before this was written.
+ * The fingerprint identifies the input and settings, so a run only resumes its own checkpoint.
+ */
+public class Checkpoint {
+    final static String MAGIC = "SeqRuler checkpoint";
+    final static int VERSION = 1;
+
+    private final long fingerprint;
+    private final int tilesDone;
+    private final long outputBytes;
+    private final Clusters clusters;
+
+    public Checkpoint(long fingerprint, int tilesDone, long outputBytes, Clusters clusters) {
+        this.fingerprint = fingerprint;
+        this.tilesDone = tilesDone;
+        this.outputBytes = outputBytes;
+        this.clusters = clusters;
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    public int getTilesDone() {
+        return tilesDone;
+    }
+
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    /**
+     * Cluster state at the checkpoint, or null when the run keeps none.
+     */
+    public Clusters getClusters() {
+        return clusters;
+    }
+
+    /**
+     * @return the checkpoint in file, or null when there is none
+     */
+    public static Checkpoint read(File file) throws IOException {
+        if (!file.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (!MAGIC.equals(in.readUTF()) || in.readInt() != VERSION)
+                throw new IOException(file + " is not a checkpoint");
+            long fingerprint = in.readLong();
+            int tilesDone = in.readInt();
+            long outputBytes = in.readLong();
+            Clusters clusters = in.readBoolean() ? Clusters.load(in) : null;
+            return new Checkpoint(fingerprint, tilesDone, outputBytes, clusters);
+        }
+    }
+
+    /**
+     * Synced and then moved over file, so a crash leaves either this checkpoint or the previous one.
+     */
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+            out.writeUTF(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            out.writeInt(tilesDone);
+            out.writeLong(outputBytes);
+            out.writeBoolean(clusters != null);
+            if (clusters != null) clusters.save(out);
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Cuts file back to the output of the checkpoint, dropping edges of unfinished tiles.
+     */
+    public void truncate(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            if (channel.size() < outputBytes)
+                throw new IOException(file + " is shorter than its checkpoint");
+            channel.truncate(outputBytes);
+        }
+    }
+}
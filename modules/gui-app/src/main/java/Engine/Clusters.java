@@ -0,0 +1,145 @@
+package Engine;
+
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntFunction;
+
+/**
+ * Connected components of the edge graph, built while the edges are found.
+ * A lock-free union-find: a root is only ever linked under a smaller index, so links are a
+ * single compare-and-set and can never form a cycle.
+ */
+public class Clusters {
+    private final AtomicIntegerArray parent;
+    // Edges counted at one of their ends; summed per component when written
+    private final AtomicLongArray edges;
+
+    public Clusters(int n) {
+        parent = new AtomicIntegerArray(n);
+        for (int i = 0; i < n; ++i) parent.set(i, i);
+        edges = new AtomicLongArray(n);
+    }
+
+    /**
+     * Copy of other, grown to n sequences; the new ones start as singletons.
+     */
+    public Clusters(int n, Clusters other) {
+        this(n);
+        for (int i = 0; i < other.size(); ++i) {
+            parent.set(i, other.parent.get(i));
+            edges.set(i, other.edges.get(i));
+        }
+    }
+
+    public int size() {
+        return parent.length();
+    }
+
+    public int find(int x) {
+        while (true) {
+            int p = parent.get(x);
+            if (p == x) return x;
+            int gp = parent.get(p);
+            if (gp != p) parent.compareAndSet(x, p, gp);     // path halving
+            x = gp;
+        }
+    }
+
+    public void union(int a, int b) {
+        while (true) {
+            a = find(a);
+            b = find(b);
+            if (a == b) return;
+            if (a < b) {
+                int t = a;
+                a = b;
+                b = t;
+            }
+            if (parent.compareAndSet(a, a, b)) return;
+        }
+    }
+
+    /**
+     * Records one edge between a and b.
+     */
+    public void addEdge(int a, int b) {
+        union(a, b);
+        edges.incrementAndGet(a);
+    }
+
+    /**
+     * Records an edge between every member of a and every member of b.
+     */
+    public void addEdges(int[] a, int[] b) {
+        for (int x : a) union(x, b[0]);
+        for (int y : b) union(y, a[0]);
+        edges.addAndGet(a[0], (long) a.length * b.length);
+    }
+
+    /**
+     * Records an edge between every two members of group.
+     */
+    public void addEdges(int[] group) {
+        for (int x : group) union(x, group[0]);
+        edges.addAndGet(group[0], (long) group.length * (group.length - 1) / 2);
+    }
+
+    void save(DataOutputStream out) throws IOException {
+        out.writeInt(size());
+        for (int i = 0; i < size(); ++i) {
+            out.writeInt(parent.get(i));
+            out.writeLong(edges.get(i));
+        }
+    }
+
+    static Clusters load(DataInputStream in) throws IOException {
+        Clusters clusters = new Clusters(in.readInt());
+        for (int i = 0; i < clusters.size(); ++i) {
+            clusters.parent.set(i, in.readInt());
+            clusters.edges.set(i, in.readLong());
+        }
+        return clusters;
+    }
+
+    /**
+     * Writes the membership table to file and the size and edge count of every cluster to
+     * file.sizes. Clusters are numbered from 1 in order of their first member; sequences without
+     * any edge are not listed.
+     */
+    public void write(File file, IntFunction<String> label) throws IOException {
+        int n = parent.length();
+        int[] size = new int[n];
+        long[] count = new long[n];
+        for (int i = 0; i < n; ++i) {
+            int root = find(i);
+            size[root]++;
+            count[root] += edges.get(i);
+        }
+        // Roots are the smallest index of their component, so numbering them in index order
+        // numbers clusters by first member
+        int[] id = new int[n];
+        int clusters = 0;
+        for (int i = 0; i < n; ++i)
+            if (find(i) == i && size[i] > 1) id[i] = ++clusters;
+
+        try (PrintWriter members = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            members.println("SequenceName,ClusterID");
+            for (int i = 0; i < n; ++i) {
+                int root = find(i);
+                if (id[root] > 0) members.println(label.apply(i) + "," + id[root]);
+            }
+        }
+        try (PrintWriter sizes = new PrintWriter(new BufferedWriter(new FileWriter(file + ".sizes")))) {
+            sizes.println("ClusterID,Size,Edges");
+            for (int i = 0; i < n; ++i)
+                if (id[i] > 0) sizes.println(id[i] + "," + size[i] + "," + count[i]);
+        }
+    }
+}
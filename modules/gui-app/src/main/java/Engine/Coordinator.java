@@ -0,0 +1,221 @@
+package Engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands the tiles of a triangle scan to Worker processes over TCP and collects their edges.
+ * A worker first gets the job (method, settings and encoded sequences), then one tile at a
+ * time. A tile is done once its whole result has arrived: the tile of a worker that disconnects
+ * goes back to the queue, and a tile running much longer than the average is also given to the
+ * next idle worker. The first result of a tile is kept, later ones are dropped.
+ * <p>
+ * Workers send a heartbeat while they compute, so a worker that goes silent for READ_TIMEOUT
+ * (hung, stopped, or cut off without closing the connection) is dropped and its tile handed
+ * out again. Results are checked against their tile, but workers are not authenticated and
+ * any client that connects is sent the whole sequence set: only expose the port on a trusted
+ * network.
+ */
+public class Coordinator {
+    public interface Listener {
+        /**
+         * Called once per tile, from the thread of the connection that delivered it.
+         */
+        void tileDone(Triangle.Tile tile, Edges edges);
+    }
+
+    final static String MAGIC = "SeqRuler worker protocol";
+    final static int VERSION = 2;
+    final static byte TILE = 1, DONE = 2, RESULT = 3, ALIVE = 4;
+    // Workers send ALIVE this often while computing; silence for READ_TIMEOUT drops the worker
+    final static long HEARTBEAT_MILLIS = TimeUnit.SECONDS.toMillis(15);
+    final static int READ_TIMEOUT = (int) (4 * HEARTBEAT_MILLIS);
+    // Tiles handed out over the network are large, so round trips do not matter
+    public final static int TILE_SIZE = Triangle.MAX_TILE;
+    // A tile running this many times longer than the average one is handed out again
+    final static int SLOW_FACTOR = 4;
+    final static long MIN_SLOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final String method;
+    private final byte[] job;
+    private final List<Triangle.Tile> tiles;
+    private final Listener listener;
+    // Guarded by this
+    private final Deque<Integer> pending = new ArrayDeque<>();
+    private final boolean[] done;
+    private final long[] started;
+    private int remaining;
+    private long done_nanos = 0;
+    private int done_count = 0;
+    private final List<Thread> connections = new ArrayList<>();
+
+    /**
+     * @param job settings and sequences as read back by the workers' Worker.JobReader
+     */
+    public Coordinator(String method, byte[] job, List<Triangle.Tile> tiles, Listener listener) {
+        this.method = method;
+        this.job = job;
+        this.tiles = tiles;
+        this.listener = listener;
+        done = new boolean[tiles.size()];
+        started = new long[tiles.size()];
+        remaining = tiles.size();
+        for (int t = 0; t < tiles.size(); ++t) pending.add(t);
+    }
+
+    /**
+     * Serves workers on port until every tile is done.
+     */
+    public void run(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port)) {
+            System.err.println("Coordinator listening on port " + server.getLocalPort() + " for " + tiles.size() + " tiles");
+            Thread acceptor = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try {
+                        Socket socket = server.accept();
+                        Thread connection = new Thread(() -> serve(socket), "coordinator-" + socket.getRemoteSocketAddress());
+                        connection.setDaemon(true);
+                        synchronized (this) {
+                            connections.add(connection);
+                        }
+                        connection.start();
+                    } catch (IOException e) {
+                        if (!server.isClosed()) e.printStackTrace();
+                    }
+                }
+            }, "coordinator-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            synchronized (this) {
+                while (remaining > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for workers", e);
+                    }
+                }
+            }
+        }
+        // let the connections tell their workers that the run is over
+        List<Thread> open;
+        synchronized (this) {
+            open = new ArrayList<>(connections);
+        }
+        for (Thread connection : open) {
+            try {
+                connection.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        int current = -1;
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(READ_TIMEOUT);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            out.writeUTF(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(method);
+            out.write(job);
+            out.flush();
+            while (true) {
+                current = next();
+                if (current < 0) {
+                    out.writeByte(DONE);
+                    out.flush();
+                    return;
+                }
+                Triangle.Tile tile = tiles.get(current);
+                out.writeByte(TILE);
+                out.writeInt(current);
+                out.writeInt(tile.rowFrom);
+                out.writeInt(tile.rowTo);
+                out.writeInt(tile.colFrom);
+                out.writeInt(tile.colTo);
+                out.flush();
+                byte reply = in.readByte();
+                while (reply == ALIVE) reply = in.readByte();
+                if (reply != RESULT || in.readInt() != current)
+                    throw new IOException("unexpected reply");
+                Edges edges = Edges.read(in, tile);
+                if (claim(current)) {
+                    listener.tileDone(tile, edges);
+                    finish();
+                }
+                current = -1;
+            }
+        } catch (SocketTimeoutException e) {
+            System.err.println("Dropped worker " + socket.getRemoteSocketAddress() + ": silent for " + READ_TIMEOUT / 1000 + " sec");
+            if (current >= 0) release(current);
+        } catch (IOException e) {
+            System.err.println("Lost worker " + socket.getRemoteSocketAddress() + ": " + e);
+            if (current >= 0) release(current);
+        }
+    }
+
+    /**
+     * Next tile for an idle worker, waiting while all the others are running but none is slow;
+     * -1 once every tile is done.
+     */
+    private synchronized int next() {
+        while (remaining > 0) {
+            while (!pending.isEmpty()) {
+                int t = pending.poll();
+                if (done[t]) continue;
+                started[t] = System.nanoTime();
+                return t;
+            }
+            long now = System.nanoTime();
+            long slow = Math.max(MIN_SLOW_NANOS, done_count > 0 ? SLOW_FACTOR * done_nanos / done_count : 0);
+            for (int t = 0; t < done.length; ++t) {
+                if (!done[t] && started[t] != 0 && now - started[t] > slow) {
+                    started[t] = now;
+                    return t;
+                }
+            }
+            try {
+                wait(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private synchronized boolean claim(int t) {
+        if (done[t]) return false;
+        done[t] = true;
+        done_nanos += System.nanoTime() - started[t];
+        done_count++;
+        return true;
+    }
+
+    private synchronized void finish() {
+        remaining--;
+        notifyAll();
+    }
+
+    private synchronized void release(int t) {
+        if (done[t]) return;
+        pending.addFirst(t);
+        notifyAll();
+    }
+}
@@ -0,0 +1,202 @@
+package Engine;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Distances of every pair of n sequences as a float32 lower triangle in a memory-mapped file,
+ * so the matrix never lives on the Java heap. Little-endian, like BinaryEdges:
+ * <pre>
+ * "SRUMATRX"                          8 bytes
+ * version, n                          int32 each
+ * per name: byte length, UTF-8 bytes  int32, bytes
+ * d(i, j) for i = 1..n-1, j = 0..i-1  float32, row by row
+ * </pre>
+ * Distinct entries can be set from different threads at once.
+ */
+public class DistanceMatrix {
+    final static byte[] MAGIC = "SRUMATRX".getBytes(StandardCharsets.US_ASCII);
+    final static int VERSION = 1;
+    // Entries per mapped chunk (1GB), so large matrices map as several buffers
+    final static int CHUNK_SHIFT = 28;
+    final static long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    private final List<String> names;
+    private final MappedByteBuffer[] chunks;
+
+    private DistanceMatrix(List<String> names, MappedByteBuffer[] chunks) {
+        this.names = names;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Creates file for a matrix of the named sequences; every distance starts as 0.
+     */
+    public static DistanceMatrix create(File file, List<String> names) throws IOException {
+        byte[] header = header(names);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.write(header);
+            raf.setLength(header.length + 4 * entries(names.size()));
+            return new DistanceMatrix(names, map(raf.getChannel(), FileChannel.MapMode.READ_WRITE, header.length, names.size()));
+        }
+    }
+
+    public static DistanceMatrix open(File file) throws IOException {
+        List<String> names = new ArrayList<>();
+        long headerBytes = MAGIC.length + 8;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException(file + " is not a distance matrix");
+            if (readInt(in) != VERSION) throw new IOException(file + " is a distance matrix of another version");
+            int n = readInt(in);
+            for (int i = 0; i < n; ++i) {
+                byte[] b = new byte[readInt(in)];
+                in.readFully(b);
+                names.add(new String(b, StandardCharsets.UTF_8));
+                headerBytes += 4 + b.length;
+            }
+        } catch (EOFException e) {
+            throw new IOException(file + " ends inside its header", e);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() != headerBytes + 4 * entries(names.size()))
+                throw new IOException(file + " does not hold a whole matrix");
+            return new DistanceMatrix(names, map(raf.getChannel(), FileChannel.MapMode.READ_ONLY, headerBytes, names.size()));
+        }
+    }
+
+    public List<String> getNames() {
+        return names;
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * Distance of sequences i and j, 0 when i == j.
+     */
+    public float get(int i, int j) {
+        if (i == j) return 0;
+        long k = i > j ? index(i, j) : index(j, i);
+        return chunks[(int) (k >>> CHUNK_SHIFT)].getFloat((int) (k & CHUNK_MASK) << 2);
+    }
+
+    /**
+     * Sets the distance of sequences i > j.
+     */
+    public void set(int i, int j, float d) {
+        long k = index(i, j);
+        chunks[(int) (k >>> CHUNK_SHIFT)].putFloat((int) (k & CHUNK_MASK) << 2, d);
+    }
+
+    /**
+     * Writes the matrix back to the file.
+     */
+    public void force() {
+        for (MappedByteBuffer chunk : chunks)
+            chunk.force();
+    }
+
+    /**
+     * Square matrix in (relaxed) PHYLIP format: the number of sequences, then a line per
+     * sequence with its name and its distances to every sequence.
+     */
+    public void writePhylip(OutputStream out, int decimals) throws IOException {
+        EdgeBuffer line = new EdgeBuffer();
+        line.appendInt(size()).newLine();
+        for (int i = 0; i < size(); ++i) {
+            line.append(names.get(i));
+            for (int j = 0; j < size(); ++j)
+                line.append(' ').appendDecimal(get(i, j), decimals);
+            line.newLine();
+            flush(line, out);
+        }
+        line.writeTo(out);
+    }
+
+    /**
+     * Square matrix as CSV, with the names as the first row and column.
+     */
+    public void writeCsv(OutputStream out, int decimals) throws IOException {
+        EdgeBuffer line = new EdgeBuffer();
+        for (String name : names)
+            line.append(',').append(name);
+        line.newLine();
+        for (int i = 0; i < size(); ++i) {
+            line.append(names.get(i));
+            for (int j = 0; j < size(); ++j)
+                line.append(',').appendDecimal(get(i, j), decimals);
+            line.newLine();
+            flush(line, out);
+        }
+        line.writeTo(out);
+    }
+
+    private static void flush(EdgeBuffer line, OutputStream out) throws IOException {
+        if (line.isFull()) {
+            line.writeTo(out);
+            line.clear();
+        }
+    }
+
+    private static long index(int i, int j) {
+        return (long) i * (i - 1) / 2 + j;
+    }
+
+    private static long entries(int n) {
+        return (long) n * (n - 1) / 2;
+    }
+
+    private static MappedByteBuffer[] map(FileChannel channel, FileChannel.MapMode mode, long offset, int n) throws IOException {
+        long entries = entries(n);
+        MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((entries + CHUNK_MASK) >>> CHUNK_SHIFT)];
+        for (int c = 0; c < chunks.length; ++c) {
+            long first = (long) c << CHUNK_SHIFT;
+            long count = Math.min(1L << CHUNK_SHIFT, entries - first);
+            chunks[c] = channel.map(mode, offset + 4 * first, 4 * count);
+            chunks[c].order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return chunks;
+    }
+
+    private static byte[] header(List<String> names) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MAGIC, 0, MAGIC.length);
+        writeInt(out, VERSION);
+        writeInt(out, names.size());
+        for (String name : names) {
+            byte[] b = name.getBytes(StandardCharsets.UTF_8);
+            writeInt(out, b.length);
+            out.write(b, 0, b.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int v) {
+        out.write(v);
+        out.write(v >>> 8);
+        out.write(v >>> 16);
+        out.write(v >>> 24);
+    }
+
+    private static int readInt(DataInputStream in) throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+}
@@ -0,0 +1,163 @@
+package Engine;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer a worker fills with output lines before handing it to an EdgeWriter.
+ */
+public class EdgeBuffer {
+    // Same charset and line ending the PrintWriter output used
+    final static Charset CHARSET = Charset.defaultCharset();
+    final static byte[] NEW_LINE = System.lineSeparator().getBytes(CHARSET);
+    // appendInt and appendDecimal write ASCII digits, which is what String.format writes unless
+    // the default locale has other digits or decimal separator; then they call String.format
+    final static boolean ASCII_NUMBERS = String.format("%d %.3f", -1234567, 0.5).equals("-1234567 0.500");
+    public final static int MAX_DECIMALS = 9;
+    final static long[] POWERS_OF_TEN = new long[19];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; ++i) POWERS_OF_TEN[i] = 10 * POWERS_OF_TEN[i - 1];
+    }
+    // d * 10^decimals stays below this, so it is exact in a long and its ulp is well below 1/2
+    final static double MAX_SCALED = 1L << 50;
+    // How close to a rounding tie the scaled value may come before appendDecimal falls back to
+    // String.format, in ulps of the scaled value
+    final static int TIE_ULPS = 8;
+
+    private byte[] bytes = new byte[EdgeWriter.BUFFER_BYTES + 1024];
+    private int length = 0;
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * True once the buffer holds enough to be worth handing to the writer.
+     */
+    public boolean isFull() {
+        return length >= EdgeWriter.BUFFER_BYTES;
+    }
+
+    public EdgeBuffer append(String s) {
+        int n = s.length();
+        ensureCapacity(n);
+        for (int i = 0; i < n; ++i) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {                                    // not ASCII, let the charset handle it
+                length -= i;
+                return append(s.getBytes(CHARSET));
+            }
+            bytes[length++] = (byte) c;
+        }
+        return this;
+    }
+
+    public EdgeBuffer append(byte[] b) {
+        ensureCapacity(b.length);
+        System.arraycopy(b, 0, bytes, length, b.length);
+        length += b.length;
+        return this;
+    }
+
+    public EdgeBuffer append(char c) {
+        ensureCapacity(1);
+        bytes[length++] = (byte) c;
+        return this;
+    }
+
+    /**
+     * Same bytes as append(String.format("%d", v)).
+     */
+    public EdgeBuffer appendInt(long v) {
+        if (!ASCII_NUMBERS) return append(String.format("%d", v));
+        if (v < 0) {
+            if (v == Long.MIN_VALUE) return append(Long.toString(v));
+            append('-');
+            v = -v;
+        }
+        return appendDigits(v, 1);
+    }
+
+    /**
+     * Same bytes as append(String.format("%." + decimals + "f", d)), without the garbage.
+     * Formatter rounds the shortest decimal form of d (as in Double.toString) half up. Unless
+     * d * 10^decimals is within a few ulps of a tie, that rounds the same way as the scaled
+     * double itself, which is what the fast path does; the rare near-ties, negative and large
+     * values go through String.format.
+     */
+    public EdgeBuffer appendDecimal(double d, int decimals) {
+        if (ASCII_NUMBERS && decimals >= 0 && decimals <= MAX_DECIMALS && d >= 0) {
+            double scaled = d * POWERS_OF_TEN[decimals];
+            if (scaled < MAX_SCALED) {
+                double floor = Math.floor(scaled);
+                double fraction = scaled - floor;
+                if (Math.abs(fraction - 0.5) > TIE_ULPS * Math.ulp(scaled)) {
+                    long v = (long) floor + (fraction > 0.5 ? 1 : 0);
+                    long unit = POWERS_OF_TEN[decimals];
+                    appendDigits(v / unit, 1);
+                    if (decimals > 0) {
+                        append('.');
+                        appendDigits(v % unit, decimals);
+                    }
+                    return this;
+                }
+            }
+        }
+        return append(String.format("%." + decimals + "f", d));
+    }
+
+    /**
+     * Appends a record of a BinaryEdges list.
+     */
+    public EdgeBuffer appendRecord(int source, int target, float distance) {
+        ensureCapacity(BinaryEdges.RECORD_BYTES);
+        putInt(source);
+        putInt(target);
+        putInt(Float.floatToIntBits(distance));
+        return this;
+    }
+
+    public EdgeBuffer newLine() {
+        return append(NEW_LINE);
+    }
+
+    /**
+     * Appends v >= 0 in decimal, left-padded with zeros to at least width digits.
+     */
+    private EdgeBuffer appendDigits(long v, int width) {
+        int digits = 1;
+        while (digits < POWERS_OF_TEN.length && v >= POWERS_OF_TEN[digits]) digits++;
+        digits = Math.max(digits, width);
+        ensureCapacity(digits);
+        for (int i = length + digits - 1; i >= length; --i) {
+            bytes[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    // little-endian, capacity already ensured
+    private void putInt(int v) {
+        bytes[length++] = (byte) v;
+        bytes[length++] = (byte) (v >>> 8);
+        bytes[length++] = (byte) (v >>> 16);
+        bytes[length++] = (byte) (v >>> 24);
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, length);
+    }
+
+    void clear() {
+        length = 0;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, length + extra));
+    }
+}
@@ -0,0 +1,142 @@
+package Engine;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Owns an output stream on a thread of its own. Workers fill EdgeBuffers and hand them over
+ * through a bounded queue, blocking while the writer is behind; written buffers are reused.
+ */
+public class EdgeWriter implements AutoCloseable {
+    final static int BUFFER_BYTES = 64 * 1024;
+    final static int QUEUED_BUFFERS = 64;
+    private final static EdgeBuffer END = new EdgeBuffer();
+
+    private final OutputStream out;
+    private final boolean closeStream;
+    private final BlockingQueue<EdgeBuffer> queue = new ArrayBlockingQueue<>(QUEUED_BUFFERS);
+    private final ConcurrentLinkedQueue<EdgeBuffer> free = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile IOException error;
+    // Bytes handed to out so far; only the writer thread updates it
+    private volatile long written = 0;
+
+    // Queued by flush(); the writer thread flushes out when it gets there
+    private static class FlushMarker extends EdgeBuffer {
+        final CountDownLatch done = new CountDownLatch(1);
+    }
+
+    /**
+     * @param closeStream whether close() also closes out (false for System.out)
+     */
+    public EdgeWriter(OutputStream out, boolean closeStream) {
+        this.out = out;
+        this.closeStream = closeStream;
+        this.thread = new Thread(this::drain, "edge-writer");
+        this.thread.start();
+    }
+
+    /**
+     * An empty buffer, reused from those already written when possible.
+     */
+    public EdgeBuffer buffer() {
+        EdgeBuffer buffer = free.poll();
+        return buffer != null ? buffer : new EdgeBuffer();
+    }
+
+    /**
+     * Queues a line from the calling thread, e.g. a header.
+     */
+    public void writeLine(String line) {
+        write(buffer().append(line).newLine());
+    }
+
+    /**
+     * Hands a filled buffer to the writer thread; the caller must not touch it afterwards.
+     */
+    public void write(EdgeBuffer buffer) {
+        if (buffer.length() == 0) {
+            free.offer(buffer);
+            return;
+        }
+        try {
+            queue.put(buffer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while queueing output", e);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            EdgeBuffer buffer;
+            try {
+                buffer = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (buffer == END) break;
+            if (buffer instanceof FlushMarker) {
+                try {
+                    if (error == null) out.flush();
+                } catch (IOException e) {
+                    error = e;
+                }
+                ((FlushMarker) buffer).done.countDown();
+                continue;
+            }
+            // after a failure keep draining so workers never block on a full queue
+            if (error == null) {
+                try {
+                    buffer.writeTo(out);
+                    written += buffer.length();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            buffer.clear();
+            free.offer(buffer);
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+            if (error == null) error = e;
+        }
+    }
+
+    /**
+     * Waits until everything queued so far is written and the stream flushed.
+     * @return bytes written since the writer was created
+     */
+    public long flush() throws IOException {
+        FlushMarker marker = new FlushMarker();
+        try {
+            queue.put(marker);
+            marker.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while flushing output", e);
+        }
+        if (error != null) throw error;
+        return written;
+    }
+
+    /**
+     * Writes out everything queued so far, then stops the writer thread.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            queue.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (closeStream) out.close();
+        if (error != null) throw error;
+    }
+}
@@ -0,0 +1,81 @@
+package Engine;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Growable list of edges (source index, target index, distance) in parallel arrays.
+ */
+public class Edges {
+    private int[] sources = new int[256];
+    private int[] targets = new int[256];
+    private double[] distances = new double[256];
+    private int size = 0;
+
+    public int size() {
+        return size;
+    }
+
+    public int source(int k) {
+        return sources[k];
+    }
+
+    public int target(int k) {
+        return targets[k];
+    }
+
+    public double distance(int k) {
+        return distances[k];
+    }
+
+    public void add(int i, int j, double d) {
+        if (size == sources.length) grow(size + 1);
+        sources[size] = i;
+        targets[size] = j;
+        distances[size++] = d;
+    }
+
+    public void addAll(Edges other) {
+        if (size + other.size > sources.length) grow(size + other.size);
+        System.arraycopy(other.sources, 0, sources, size, other.size);
+        System.arraycopy(other.targets, 0, targets, size, other.size);
+        System.arraycopy(other.distances, 0, distances, size, other.size);
+        size += other.size;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        for (int k = 0; k < size; ++k) {
+            out.writeInt(sources[k]);
+            out.writeInt(targets[k]);
+            out.writeDouble(distances[k]);
+        }
+    }
+
+    /**
+     * Edges of tile as another process wrote them; a count or pair outside the tile is an error.
+     */
+    static Edges read(DataInputStream in, Triangle.Tile tile) throws IOException {
+        Edges edges = new Edges();
+        int n = in.readInt();
+        if (n < 0 || n > tile.pairs())
+            throw new IOException(n + " edges for a tile of " + tile.pairs() + " pairs");
+        if (n > edges.sources.length) edges.grow(n);
+        for (int k = 0; k < n; ++k) {
+            int i = in.readInt(), j = in.readInt();
+            if (i < tile.rowFrom || i >= tile.rowTo || j < tile.colFrom || j >= tile.colTo)
+                throw new IOException("edge " + i + "," + j + " outside its tile");
+            edges.add(i, j, in.readDouble());
+        }
+        return edges;
+    }
+
+    private void grow(int capacity) {
+        int length = Math.max(capacity, 2 * sources.length);
+        sources = Arrays.copyOf(sources, length);
+        targets = Arrays.copyOf(targets, length);
+        distances = Arrays.copyOf(distances, length);
+    }
+}
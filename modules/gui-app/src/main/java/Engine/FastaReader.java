@@ -0,0 +1,108 @@
+package Engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * FASTA parser working on raw bytes: residues are encoded through a code table as they are
+ * scanned, so there is no String per line and one array allocation per sequence.
+ * Files are memory mapped; streams such as stdin are read through a buffer.
+ * Lines are trimmed as before: blank lines and sequences with an empty name are skipped.
+ */
+public class FastaReader {
+    public interface Consumer {
+        void accept(String name, byte[] codes);
+    }
+
+    final static int CHUNK_BYTES = 64 * 1024;
+    final static long MAP_BYTES = 1L << 30;
+
+    private final byte[] encoding;
+    private final Consumer consumer;
+    private byte[] name = new byte[256];
+    private int nameLength = 0;
+    private byte[] codes = new byte[CHUNK_BYTES];
+    private int codesLength = 0;
+    private boolean inRecord = false;
+    private boolean inHeader = false;
+    private boolean atLineStart = true;
+
+    /**
+     * @param encoding code for each byte value, e.g. Seq.encoding
+     */
+    private FastaReader(byte[] encoding, Consumer consumer) {
+        this.encoding = encoding;
+        this.consumer = consumer;
+    }
+
+    public static void read(File file, byte[] encoding, Consumer consumer) throws IOException {
+        FastaReader reader = new FastaReader(encoding, consumer);
+        byte[] chunk = new byte[CHUNK_BYTES];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long pos = 0; pos < size; pos += MAP_BYTES) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_BYTES, size - pos));
+                while (map.hasRemaining()) {
+                    int n = Math.min(chunk.length, map.remaining());
+                    map.get(chunk, 0, n);
+                    reader.feed(chunk, n);
+                }
+            }
+        }
+        reader.finish();
+    }
+
+    public static void read(InputStream in, byte[] encoding, Consumer consumer) throws IOException {
+        FastaReader reader = new FastaReader(encoding, consumer);
+        byte[] chunk = new byte[CHUNK_BYTES];
+        int n;
+        while ((n = in.read(chunk)) > 0)
+            reader.feed(chunk, n);
+        reader.finish();
+    }
+
+    private void feed(byte[] chunk, int n) {
+        for (int i = 0; i < n; ++i) {
+            int b = chunk[i] & 0xFF;
+            if (b == '\n' || b == '\r') {
+                inHeader = false;
+                atLineStart = true;
+            }
+            else if (inHeader) {
+                if (nameLength == name.length) name = Arrays.copyOf(name, 2 * name.length);
+                name[nameLength++] = (byte) b;
+            }
+            else if (b > ' ') {                                 // whitespace is trimmed
+                if (b == '>' && atLineStart) {
+                    emit();
+                    inRecord = true;
+                    inHeader = true;
+                }
+                else {
+                    atLineStart = false;
+                    if (codesLength == codes.length) codes = Arrays.copyOf(codes, 2 * codes.length);
+                    codes[codesLength++] = encoding[b];
+                }
+            }
+        }
+    }
+
+    private void finish() {
+        emit();
+    }
+
+    private void emit() {
+        int end = nameLength;
+        while (end > 0 && (name[end - 1] & 0xFF) <= ' ') --end;
+        if (inRecord && end > 0)
+            consumer.accept(new String(name, 0, end, Charset.defaultCharset()), Arrays.copyOf(codes, codesLength));
+        nameLength = 0;
+        codesLength = 0;
+    }
+}
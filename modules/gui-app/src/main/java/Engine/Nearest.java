@@ -0,0 +1,119 @@
+package Engine;
+
+import java.util.Arrays;
+
+/**
+ * The k nearest neighbours of every sequence, found during a triangle scan.
+ * A tile offers its pairs to small local heaps for its rows and columns and merges them into
+ * the shared heaps when done, so the shared heaps are locked once per sequence per tile.
+ * Neighbours are ordered by distance, then by index, so the result does not depend on the order
+ * in which tiles complete.
+ */
+public class Nearest {
+    public interface Neighbour {
+        void accept(int j, double d);
+    }
+
+    /**
+     * Bounded max-heap of (distance, index) holding the k smallest offered.
+     */
+    public static class Heap {
+        private final double[] dist;
+        private final int[] index;
+        private int size = 0;
+        // Distances above limit are known not to make the final k
+        private final double limit;
+
+        Heap(int k, double limit) {
+            dist = new double[k];
+            index = new int[k];
+            this.limit = limit;
+        }
+
+        /**
+         * Largest distance that can still enter the heap.
+         */
+        public double bound() {
+            return size == dist.length ? Math.min(dist[0], limit) : limit;
+        }
+
+        public void offer(double d, int j) {
+            if (d > limit) return;
+            if (size < dist.length) {
+                int c = size++;
+                while (c > 0) {
+                    int p = (c - 1) >>> 1;
+                    if (!worse(d, j, dist[p], index[p])) break;
+                    dist[c] = dist[p];
+                    index[c] = index[p];
+                    c = p;
+                }
+                dist[c] = d;
+                index[c] = j;
+            } else if (worse(dist[0], index[0], d, j)) {
+                int c = 0;
+                while (true) {
+                    int l = 2 * c + 1, r = l + 1, m = c;
+                    double md = d;
+                    int mj = j;
+                    if (l < size && worse(dist[l], index[l], md, mj)) { m = l; md = dist[l]; mj = index[l]; }
+                    if (r < size && worse(dist[r], index[r], md, mj)) m = r;
+                    if (m == c) break;
+                    dist[c] = dist[m];
+                    index[c] = index[m];
+                    c = m;
+                }
+                dist[c] = d;
+                index[c] = j;
+            }
+        }
+
+        private static boolean worse(double d1, int j1, double d2, int j2) {
+            return d1 > d2 || d1 == d2 && j1 > j2;
+        }
+    }
+
+    private final int k;
+    private final Heap[] heaps;
+
+    public Nearest(int n, int k) {
+        this.k = k;
+        heaps = new Heap[n];
+        for (int i = 0; i < n; ++i) heaps[i] = new Heap(k, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Local heaps for sequences from..to-1, starting from the bounds already reached.
+     */
+    public Heap[] local(int from, int to) {
+        Heap[] local = new Heap[to - from];
+        for (int i = from; i < to; ++i) {
+            synchronized (heaps[i]) {
+                local[i - from] = new Heap(k, heaps[i].bound());
+            }
+        }
+        return local;
+    }
+
+    public void merge(int from, Heap[] local) {
+        for (int x = 0; x < local.length; ++x) {
+            Heap heap = heaps[from + x];
+            synchronized (heap) {
+                for (int e = 0; e < local[x].size; ++e)
+                    heap.offer(local[x].dist[e], local[x].index[e]);
+            }
+        }
+    }
+
+    /**
+     * Neighbours of sequence i, nearest first. Only call once the scan is done.
+     */
+    public void forEach(int i, Neighbour consumer) {
+        Heap heap = heaps[i];
+        Integer[] order = new Integer[heap.size];
+        for (int e = 0; e < heap.size; ++e) order[e] = e;
+        Arrays.sort(order, (a, b) -> heap.dist[a] != heap.dist[b]
+                ? Double.compare(heap.dist[a], heap.dist[b]) : Integer.compare(heap.index[a], heap.index[b]));
+        for (int e : order) consumer.accept(heap.index[e], heap.dist[e]);
+    }
+}
@@ -0,0 +1,107 @@
+package Engine;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Encoded sequences by their text (or other byte form), least recently used first out once the
+ * cache holds more than maxBytes. For callers that see the same sequences over and over, such
+ * as a Hive self-join evaluating every sequence against thousands of others. Not thread-safe.
+ */
+public class SeqCache<S> {
+    public final static long DEFAULT_BYTES = 64L << 20;
+
+    public interface Decoder<S> {
+        S decode(byte[] bytes, int start, int length);
+    }
+
+    private final Function<String, S> fromText;
+    private final Decoder<S> fromBytes;
+    private final ToLongFunction<S> size;
+    private final long max_bytes;
+    private long bytes = 0;
+    // Keys are Strings or BytesKeys; both compare by hash and length first, then by content
+    private final LinkedHashMap<Object, S> seqs = new LinkedHashMap<>(256, 0.75f, true);
+    private final BytesKey probe = new BytesKey();
+
+    /**
+     * @param size approximate bytes a sequence takes in memory
+     */
+    public SeqCache(Function<String, S> fromText, Decoder<S> fromBytes, ToLongFunction<S> size) {
+        this(fromText, fromBytes, size, DEFAULT_BYTES);
+    }
+
+    public SeqCache(Function<String, S> fromText, Decoder<S> fromBytes, ToLongFunction<S> size, long max_bytes) {
+        this.fromText = fromText;
+        this.fromBytes = fromBytes;
+        this.size = size;
+        this.max_bytes = max_bytes;
+    }
+
+    public S get(String text) {
+        S seq = seqs.get(text);
+        if (seq != null) return seq;
+        seq = fromText.apply(text);
+        put(text, seq, 2L * text.length());
+        return seq;
+    }
+
+    /**
+     * The sequence of bytes[start..start+length), which are only copied when not cached yet.
+     */
+    public S get(byte[] bytes, int start, int length) {
+        S seq = seqs.get(probe.set(bytes, start, length));
+        if (seq != null) return seq;
+        seq = fromBytes.decode(bytes, start, length);
+        put(new BytesKey().set(Arrays.copyOfRange(bytes, start, start + length), 0, length), seq, length);
+        return seq;
+    }
+
+    private void put(Object key, S seq, long key_bytes) {
+        seqs.put(key, seq);
+        bytes += key_bytes + size.applyAsLong(seq);
+        Iterator<Map.Entry<Object, S>> eldest = seqs.entrySet().iterator();
+        while (bytes > max_bytes && seqs.size() > 1) {
+            Map.Entry<Object, S> e = eldest.next();
+            Object key_out = e.getKey();
+            bytes -= (key_out instanceof String ? 2L * ((String) key_out).length() : ((BytesKey) key_out).length) + size.applyAsLong(e.getValue());
+            eldest.remove();
+        }
+    }
+
+    // A byte range as a map key
+    private static class BytesKey {
+        byte[] bytes;
+        int start, length, hash;
+
+        BytesKey set(byte[] bytes, int start, int length) {
+            this.bytes = bytes;
+            this.start = start;
+            this.length = length;
+            int h = 1;
+            for (int i = start; i < start + length; ++i)
+                h = 31 * h + bytes[i];
+            hash = 31 * h + length;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BytesKey)) return false;
+            BytesKey k = (BytesKey) o;
+            if (hash != k.hash || length != k.length) return false;
+            for (int i = 0; i < length; ++i)
+                if (bytes[start + i] != k.bytes[k.start + i]) return false;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package Engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encoded sequences of earlier runs, kept on disk for incremental runs: the distance method,
+ * threshold and ambiguity settings they were measured with, the names and codes in index order,
+ * and the cluster state of the edges found among them.
+ */
+public class SequenceStore {
+    final static String MAGIC = "SeqRuler sequence store";
+    final static int VERSION = 1;
+
+    private final String method;
+    private final double threshold;
+    private final String ambiguity_handling;
+    private final double max_ambiguity_fraction;
+    private final List<String> names;
+    private final List<byte[]> codes;
+    private final Clusters clusters;
+
+    public SequenceStore(String method, double threshold, String ambiguity_handling, double max_ambiguity_fraction,
+                         List<String> names, List<byte[]> codes, Clusters clusters) {
+        this.method = method;
+        this.threshold = threshold;
+        this.ambiguity_handling = ambiguity_handling;
+        this.max_ambiguity_fraction = max_ambiguity_fraction;
+        this.names = names;
+        this.codes = codes;
+        this.clusters = clusters;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    public String getAmbiguityHandling() {
+        return ambiguity_handling;
+    }
+
+    public double getMaxAmbiguityFraction() {
+        return max_ambiguity_fraction;
+    }
+
+    public List<String> getNames() {
+        return names;
+    }
+
+    public List<byte[]> getCodes() {
+        return codes;
+    }
+
+    public Clusters getClusters() {
+        return clusters;
+    }
+
+    public static SequenceStore read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (!MAGIC.equals(in.readUTF()))
+                throw new IOException(file + " is not a sequence store");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException(file + ": unsupported sequence store version " + version);
+            String method = in.readUTF();
+            double threshold = in.readDouble();
+            String ambiguity_handling = in.readUTF();
+            double max_ambiguity_fraction = in.readDouble();
+            int n = in.readInt();
+            List<String> names = new ArrayList<>(n);
+            List<byte[]> codes = new ArrayList<>(n);
+            for (int i = 0; i < n; ++i) {
+                names.add(in.readUTF());
+                byte[] seq = new byte[in.readInt()];
+                in.readFully(seq);
+                codes.add(seq);
+            }
+            return new SequenceStore(method, threshold, ambiguity_handling, max_ambiguity_fraction, names, codes, Clusters.load(in));
+        }
+    }
+
+    /**
+     * Written next to file first and then moved over it, so a failed run leaves the old store.
+     */
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeUTF(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(method);
+            out.writeDouble(threshold);
+            out.writeUTF(ambiguity_handling);
+            out.writeDouble(max_ambiguity_fraction);
+            out.writeInt(names.size());
+            for (int i = 0; i < names.size(); ++i) {
+                out.writeUTF(names.get(i));
+                out.writeInt(codes.get(i).length);
+                out.write(codes.get(i));
+            }
+            clusters.save(out);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,152 @@
+package Engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits the lower triangle of an all-vs-all comparison (pairs i > j) into square tiles
+ * and computes them on a work-stealing pool.
+ */
+public class Triangle {
+    // Budget for the sequences of one tile (rows plus columns), about a per-core L2 cache
+    final static long TILE_BYTES = 256 * 1024;
+    final static int MIN_TILE = 16, MAX_TILE = 1024;
+
+    public static class Tile {
+        public final int rowFrom, rowTo, colFrom, colTo;
+
+        public Tile(int rowFrom, int rowTo, int colFrom, int colTo) {
+            this.rowFrom = rowFrom;
+            this.rowTo = rowTo;
+            this.colFrom = colFrom;
+            this.colTo = colTo;
+        }
+
+        /**
+         * End (exclusive) of the columns of row i inside this tile, keeping only pairs with j < i.
+         */
+        public int colEnd(int row) {
+            return Math.min(colTo, row);
+        }
+
+        public long pairs() {
+            long pairs = 0;
+            for (int i = rowFrom; i < rowTo; ++i)
+                pairs += Math.max(0, colEnd(i) - colFrom);
+            return pairs;
+        }
+    }
+
+    public interface TileTask {
+        void compute(Tile tile);
+    }
+
+    /**
+     * Tile side such that a tile's rows and columns fit in TILE_BYTES.
+     */
+    public static int tileSize(long bytesPerSequence) {
+        long size = TILE_BYTES / (2 * Math.max(1, bytesPerSequence));
+        return (int) Math.max(MIN_TILE, Math.min(MAX_TILE, size));
+    }
+
+    /**
+     * Tiles covering all pairs j < i < n, row by row.
+     */
+    public static List<Tile> tiles(int n, int size) {
+        List<Tile> tiles = new ArrayList<>();
+        for (int r = 0; r < n; r += size) {
+            for (int c = 0; c <= r; c += size) {
+                tiles.add(new Tile(r, Math.min(n, r + size), c, Math.min(n, c + size)));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Tiles covering the rows rowFrom <= i < n of the triangle: every pair j < i with i >= rowFrom.
+     */
+    public static List<Tile> rows(int rowFrom, int n, int size) {
+        List<Tile> tiles = new ArrayList<>();
+        for (int r = rowFrom; r < n; r += size) {
+            int rowTo = Math.min(n, r + size);
+            for (int c = 0; c < rowTo - 1; c += size) {
+                tiles.add(new Tile(r, rowTo, c, Math.min(rowTo, c + size)));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Tiles covering the block of pairs rowFrom <= i < rowTo, colFrom <= j < colTo, which must
+     * lie below the diagonal (colTo <= rowFrom).
+     */
+    public static List<Tile> tiles(int rowFrom, int rowTo, int colFrom, int colTo, int size) {
+        List<Tile> tiles = new ArrayList<>();
+        for (int r = rowFrom; r < rowTo; r += size) {
+            for (int c = colFrom; c < colTo; c += size) {
+                tiles.add(new Tile(r, Math.min(rowTo, r + size), c, Math.min(colTo, c + size)));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Shard k (from 0) of count: a run of consecutive tiles holding about 1/count of the pairs.
+     * A tile goes to the shard its first pair falls in, so the shards cover every tile once.
+     */
+    public static List<Tile> shard(List<Tile> tiles, int k, int count) {
+        long total = 0;
+        for (Tile tile : tiles) total += tile.pairs();
+        long from = total * k / count, to = total * (k + 1) / count;
+        List<Tile> shard = new ArrayList<>();
+        long before = 0;
+        for (Tile tile : tiles) {
+            if (before >= from && before < to) shard.add(tile);
+            before += tile.pairs();
+        }
+        return shard;
+    }
+
+    public static void run(List<Tile> tiles, int cores, TileTask task) {
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, cores));
+        try {
+            run(tiles, pool, task);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Computes the tiles on a pool the caller keeps, for callers that run many small batches.
+     */
+    public static void run(List<Tile> tiles, ForkJoinPool pool, TileTask task) {
+        pool.invoke(new TileRange(tiles, 0, tiles.size(), task));
+    }
+
+    private static class TileRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Tile> tiles;
+        private final int from, to;
+        private final TileTask task;
+
+        TileRange(List<Tile> tiles, int from, int to, TileTask task) {
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+            this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                task.compute(tiles.get(from));
+            } else if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new TileRange(tiles, from, mid, task), new TileRange(tiles, mid, to, task));
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package Engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes tiles for a Coordinator: connects, reads the job once, then computes the tiles it is
+ * given on the local thread pool and sends back their edges until the coordinator is done.
+ * While a tile runs, a heartbeat tells the coordinator the worker is still alive.
+ */
+public class Worker {
+    public interface Job {
+        /**
+         * Adds the edges of the pairs of tile to edges. Called from several threads at once.
+         */
+        void compute(Triangle.Tile tile, Edges edges);
+
+        /**
+         * Average size of a sequence, to split tiles for the local threads.
+         */
+        long bytesPerSequence();
+    }
+
+    public interface JobReader {
+        Job read(String method, DataInputStream in) throws IOException;
+    }
+
+    public static void run(String host, int port, int cores, JobReader reader) throws IOException {
+        ScheduledExecutorService beats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread beat = new Thread(r, "worker-heartbeat");
+            beat.setDaemon(true);
+            return beat;
+        });
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (!Coordinator.MAGIC.equals(in.readUTF()) || in.readInt() != Coordinator.VERSION)
+                throw new IOException(host + ":" + port + " is not a SeqRuler coordinator of this version");
+            String method = in.readUTF();
+            Job job = reader.read(method, in);
+            int size = Triangle.tileSize(job.bytesPerSequence());
+            System.err.println("Connected to " + host + ":" + port + " for a " + method + " job");
+            int tiles = 0;
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    System.err.println("Coordinator closed the connection after " + tiles + " tiles");
+                    return;
+                }
+                if (type == Coordinator.DONE) break;
+                if (type != Coordinator.TILE) throw new IOException("unexpected message " + type);
+                int id = in.readInt();
+                Triangle.Tile tile = new Triangle.Tile(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+                Edges edges = new Edges();
+                List<Triangle.Tile> parts = Triangle.tiles(tile.rowFrom, tile.rowTo, tile.colFrom, tile.colTo, size);
+                ScheduledFuture<?> heartbeat = beats.scheduleAtFixedRate(() -> alive(out),
+                        Coordinator.HEARTBEAT_MILLIS, Coordinator.HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                try {
+                    Triangle.run(parts, cores, part -> {
+                        Edges local = new Edges();
+                        job.compute(part, local);
+                        synchronized (edges) {
+                            edges.addAll(local);
+                        }
+                    });
+                } finally {
+                    heartbeat.cancel(false);
+                }
+                synchronized (out) {
+                    out.writeByte(Coordinator.RESULT);
+                    out.writeInt(id);
+                    edges.write(out);
+                    out.flush();
+                }
+                tiles++;
+            }
+            System.err.println("Done after " + tiles + " tiles");
+        } finally {
+            beats.shutdownNow();
+        }
+    }
+
+    private static void alive(DataOutputStream out) {
+        synchronized (out) {
+            try {
+                out.writeByte(Coordinator.ALIVE);
+                out.flush();
+            } catch (IOException e) {
+                // the next result write reports the broken connection
+            }
+        }
+    }
+}
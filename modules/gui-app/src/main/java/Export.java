@@ -0,0 +1,46 @@
+import Engine.DistanceMatrix;
+import TN93.TN93;
+import picocli.CommandLine;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+@CommandLine.Command(name = "export", mixinStandardHelpOptions = true,
+        description = "Exports a distance matrix (--matrix) as a square PHYLIP or CSV matrix")
+public class Export implements Runnable {
+    @CommandLine.Option(names={"-F", "--format"}, description="One of [phylip, csv]. Default: phylip", defaultValue = "phylip")
+    private String format;
+    @CommandLine.Option(names={"-o", "--outFile"}, description="output file", paramLabel = "FILE")
+    private File outputFile;
+    @CommandLine.Option(names={"-S", "--stdout"}, description="write the matrix to stdout. Alternative to writing to a file (-o)", defaultValue = "false")
+    private boolean use_stdout;
+    @CommandLine.Parameters(paramLabel = "MATRIX", description = "distance matrix written by --matrix")
+    private File matrixFile;
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
+
+    public void run() {
+        if (matrixFile == null || outputFile == null && !use_stdout)
+            throw new CommandLine.ParameterException(spec.commandLine(), "Give the distance matrix and -o or -S");
+        if (!"phylip".equalsIgnoreCase(format) && !"csv".equalsIgnoreCase(format))
+            throw new CommandLine.ParameterException(spec.commandLine(), "--format must be phylip or csv");
+        try {
+            DistanceMatrix matrix = DistanceMatrix.open(matrixFile);
+            OutputStream out = use_stdout ? System.out : new BufferedOutputStream(new FileOutputStream(outputFile));
+            try {
+                if ("csv".equalsIgnoreCase(format))
+                    matrix.writeCsv(out, TN93.DECIMALS);
+                else
+                    matrix.writePhylip(out, TN93.DECIMALS);
+            } finally {
+                if (use_stdout) out.flush();
+                else out.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
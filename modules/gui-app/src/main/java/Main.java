@@ -1,5 +1,6 @@
 import TN93.TN93;
 import SNP.SNP;
+import Engine.Worker;
 import picocli.CommandLine;
 
 import javax.swing.*;
@@ -10,13 +11,14 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.io.IOException;
 import java.util.Observable;
 import java.util.Observer;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 import static javax.swing.JOptionPane.showMessageDialog;
 
-@CommandLine.Command(name = "SeqRuler", mixinStandardHelpOptions = true, version = "4.4.4")
+@CommandLine.Command(name = "SeqRuler", mixinStandardHelpOptions = true, version = "4.4.4", subcommands = {Merge.class, Convert.class, Export.class})
 public class Main implements Runnable{
     @CommandLine.Option(names={"-i", "--inFile"}, description="input file with sequences",
             paramLabel = "FILE")
@@ -61,10 +63,67 @@ public class Main implements Runnable{
     @CommandLine.Option(names={"-e", "--enumerate_sequences"},
             description="Enumerate sequences for output file, and produce additional map file giving integer to sequence name mapping. Default: false")
     private boolean enumerate_sequences=false;
+    @CommandLine.Option(names={"--binary"},
+            description="Write the edge list in binary: a name table, then 12 bytes (int32 source, int32 target, float32 distance) per edge. Read it back with the convert command. Default: false")
+    private boolean binary=false;
+    @CommandLine.Option(names={"--no-early-exit"},
+            description="Scan every pair to the end, even once its distance is known to be above the threshold. [TN93 only] Default: false")
+    private boolean noEarlyExit=false;
+    @CommandLine.Option(names={"--collapse-identical"},
+            description="Compute distances once per group of identical sequences and copy them to every member. [TN93 only] Default: false")
+    private boolean collapseIdentical=false;
+    @CommandLine.Option(names={"--clusters"},
+            description="Write the clusters (connected components of the edges) to FILE, and their sizes and edge counts to FILE.sizes. The edge list is then optional (-o, -S)",
+            paramLabel = "FILE")
+    private File clustersFile;
+    @CommandLine.Option(names={"--nearest"},
+            description="Report only the k nearest sequences (within the threshold) of every sequence, nearest first. Default: 0 (all edges)",
+            paramLabel = "k", defaultValue = "0")
+    private int nearest;
+    @CommandLine.Option(names={"-R", "--reference"},
+            description="reference file with sequences. Only distances between the input (query) sequences and the references are calculated",
+            paramLabel = "FILE")
+    private File referenceFile;
+    @CommandLine.Option(names={"--query-vs-query"},
+            description="With --reference, also calculate distances between the query sequences. Default: false")
+    private boolean queryVsQuery=false;
+    @CommandLine.Option(names={"--store"},
+            description="Incremental mode: keep the sequences in FILE between runs and only calculate distances involving sequences not stored yet, appending their edges to the output file. [TN93 only]",
+            paramLabel = "FILE")
+    private File storeFile;
+    @CommandLine.Option(names={"--matrix"},
+            description="Write the complete distance matrix, without threshold, to FILE as a memory-mapped float32 lower triangle instead of an edge list. Export it with the export command. [TN93 only]",
+            paramLabel = "FILE")
+    private File matrixFile;
+    @CommandLine.Option(names={"--checkpoint"},
+            description="Every SECONDS, sync the output file and record the finished part of the run in <outFile>.checkpoint. [TN93 only] Default: 0 (off), 600 with --resume",
+            paramLabel = "SECONDS", defaultValue = "0")
+    private int checkpointInterval;
+    @CommandLine.Option(names={"--resume"},
+            description="Continue an interrupted run from its checkpoint, appending to the output file. [TN93 only] Default: false")
+    private boolean resume=false;
+    @CommandLine.Option(names={"--shard"},
+            description="Compute only shard k of N equal parts of the pairs, e.g. 2/8. Merge the shard outputs with the merge command. [TN93 only]",
+            paramLabel = "k/N")
+    private String shard;
+    @CommandLine.Option(names={"--coordinator"},
+            description="Distribute the run: serve the pairs to workers (--worker) connecting on PORT and write their edges",
+            paramLabel = "PORT", defaultValue = "0")
+    private int coordinatorPort;
+    @CommandLine.Option(names={"--worker"},
+            description="Compute pairs for the coordinator at HOST:PORT using --cores threads, until the run is done",
+            paramLabel = "HOST:PORT")
+    private String workerAddress;
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
 
 
 
     public void run() {
+        if (workerAddress != null) {
+            run_worker();
+            return;
+        }
         if(is_server) {
             try {
                 run_server();
@@ -72,7 +131,7 @@ public class Main implements Runnable{
                 e.printStackTrace();
             }
         }
-        if(inputFile == null && use_stdin == false && input_as_pairs == false || outputFile == null && use_stdout == false) {
+        if(inputFile == null && use_stdin == false && input_as_pairs == false || outputFile == null && use_stdout == false && clustersFile == null && matrixFile == null) {
             javax.swing.SwingUtilities.invokeLater(new Runnable() {
                 public void run() {
                     createAndShowGUI();
@@ -92,6 +151,14 @@ public class Main implements Runnable{
                 }
             }
 
+            // The nearest-neighbour scans write neither clusters nor the members of collapsed groups
+            if (nearest > 0 && (clustersFile != null || collapseIdentical))
+                throw new CommandLine.ParameterException(spec.commandLine(), "--nearest cannot be used with --clusters or --collapse-identical");
+            // The store holds one all-vs-all over the input, which the other modes do not compute
+            if (storeFile != null && (input_as_pairs || referenceFile != null || queryVsQuery || nearest > 0 || coordinatorPort > 0))
+                throw new CommandLine.ParameterException(spec.commandLine(),
+                        "--store cannot be used with --pairs, --reference, --query-vs-query, --nearest or --coordinator");
+
             if("TN93".equals(distanceMethod)) {
                 TN93 tn93 = new TN93();
                 tn93.setEdgeThreshold(Float.parseFloat(edgeThresholdString));
@@ -112,10 +179,55 @@ public class Main implements Runnable{
                 tn93.setAmbiguityHandling(ambiguityHandling);
                 tn93.setMaxAmbiguityFraction(max_ambiguity_fraction);
                 tn93.setEnumerateSequences(enumerate_sequences);
+                if (binary && (input_as_pairs || storeFile != null))
+                    throw new CommandLine.ParameterException(spec.commandLine(), "--binary cannot be used with --pairs or --store");
+                tn93.setBinary(binary);
+                if (matrixFile != null && (input_as_pairs || storeFile != null || referenceFile != null || shard != null || coordinatorPort > 0))
+                    throw new CommandLine.ParameterException(spec.commandLine(), "--matrix cannot be used with --pairs, --store, --reference, --shard or --coordinator");
+                tn93.setMatrixFile(matrixFile);
+                tn93.setEarlyExit(!noEarlyExit);
+                tn93.setCollapseIdentical(collapseIdentical);
+                tn93.setClustersFile(clustersFile);
+                tn93.setNearest(nearest);
+                tn93.setReferenceFile(referenceFile);
+                tn93.setQueryVsQuery(queryVsQuery);
+                tn93.setStoreFile(storeFile);
+                tn93.setCheckpointInterval(checkpointInterval);
+                tn93.setResume(resume);
+                if (shard != null) {
+                    String[] parts = shard.split("/");
+                    int k, n;
+                    try {
+                        k = Integer.parseInt(parts[0].trim());
+                        n = Integer.parseInt(parts[1].trim());
+                    } catch (RuntimeException e) {
+                        k = n = 0;
+                    }
+                    if (parts.length != 2 || n < 1 || k < 1 || k > n)
+                        throw new CommandLine.ParameterException(spec.commandLine(), "--shard must be k/N with 1 <= k <= N, e.g. 2/8");
+                    if (clustersFile != null)
+                        throw new CommandLine.ParameterException(spec.commandLine(), "--clusters needs all edges and cannot be used with --shard");
+                    // These modes do not split their pairs, so every shard would write the whole result
+                    if (input_as_pairs || nearest > 0 || referenceFile != null || queryVsQuery || storeFile != null || coordinatorPort > 0)
+                        throw new CommandLine.ParameterException(spec.commandLine(),
+                                "--shard cannot be used with --pairs, --nearest, --reference, --query-vs-query, --store or --coordinator");
+                    tn93.setShard(k - 1, n);
+                }
+                tn93.setCoordinatorPort(coordinatorPort);
                 tn93.setCores(cores);
                 tn93.tn93Fasta();
             }
             else if("SNP".equals(distanceMethod)) {
+                if (shard != null)
+                    throw new CommandLine.ParameterException(spec.commandLine(), "--shard is for TN93 only");
+                if (collapseIdentical)
+                    throw new CommandLine.ParameterException(spec.commandLine(), "--collapse-identical is for TN93 only");
+                if (storeFile != null)
+                    throw new CommandLine.ParameterException(spec.commandLine(), "--store is for TN93 only");
+                if (checkpointInterval > 0 || resume)
+                    throw new CommandLine.ParameterException(spec.commandLine(), "--checkpoint and --resume are for TN93 only");
+                if (matrixFile != null)
+                    throw new CommandLine.ParameterException(spec.commandLine(), "--matrix is for TN93 only");
                 SNP snp = new SNP();
 
                 if (use_stdin) 
@@ -135,10 +247,36 @@ public class Main implements Runnable{
                 snp.setIgnoreAmbiguities(ignoreAmbiguities);
                 snp.setIgnoreAllGaps(ignoreAllGaps);
                 snp.setIgnoreTerminalGaps(ignoreTerminalGaps);
+                snp.setClustersFile(clustersFile);
+                snp.setBinary(binary);
+                snp.setNearest(nearest);
+                snp.setCoordinatorPort(coordinatorPort);
+                snp.setReferenceFile(referenceFile);
+                snp.setQueryVsQuery(queryVsQuery);
                 snp.snpFasta();
             }
         }
     }
+    private void run_worker() {
+        int colon = workerAddress.lastIndexOf(':');
+        int port;
+        try {
+            port = Integer.parseInt(workerAddress.substring(colon + 1));
+        } catch (RuntimeException e) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "--worker must be HOST:PORT, e.g. localhost:9093");
+        }
+        String host = colon > 0 ? workerAddress.substring(0, colon) : "localhost";
+        try {
+            Worker.run(host, port, cores, (method, in) -> {
+                if ("TN93".equals(method)) return TN93.workerJob(in);
+                if ("SNP".equals(method)) return SNP.workerJob(in);
+                throw new IOException("unknown distance method " + method);
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     private static void run_server() throws InterruptedException {
         System.out.println("To stop the server press Ctrl-C");
         Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -152,7 +290,16 @@ public class Main implements Runnable{
     }
 
     public static void main(String[] args) {
-        CommandLine.run(new Main(), System.out, args);
+        // A rejected command line exits with status 2, so scripts and multi-node runs can tell
+        new CommandLine(new Main()).parseWithHandlers(
+                new CommandLine.RunLast().useOut(System.out),
+                new CommandLine.DefaultExceptionHandler<java.util.List<Object>>() {
+                    @Override
+                    public java.util.List<Object> handleExecutionException(CommandLine.ExecutionException ex, CommandLine.ParseResult parseResult) {
+                        throw ex;
+                    }
+                }.useErr(System.err).andExit(2),
+                args);
     }
 
     private static void createAndShowGUI() {
@@ -0,0 +1,96 @@
+import Engine.BinaryEdges;
+import picocli.CommandLine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+@CommandLine.Command(name = "merge", mixinStandardHelpOptions = true,
+        description = "Merges the edge lists (CSV or --binary) written by the shards of a run (--shard) into the edge list of the whole run")
+public class Merge implements Runnable {
+    final static String HEADER = "Source,Target,Distance";
+
+    @CommandLine.Option(names={"-o", "--outFile"}, description="merged output file", paramLabel = "FILE")
+    private File outputFile;
+    @CommandLine.Option(names={"-S", "--stdout"}, description="write the merged edges to stdout. Alternative to writing to a file (-o)", defaultValue = "false")
+    private boolean use_stdout;
+    @CommandLine.Parameters(paramLabel = "SHARD", description = "edge lists of the shards, in any order")
+    private List<File> shards;
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
+
+    public void run() {
+        if (shards == null || outputFile == null && !use_stdout)
+            throw new CommandLine.ParameterException(spec.commandLine(), "Give the shard edge lists and -o or -S");
+        try {
+            OutputStream out = use_stdout ? System.out : new BufferedOutputStream(new FileOutputStream(outputFile));
+            try {
+                merge(shards, out);
+            } finally {
+                if (use_stdout) out.flush();
+                else out.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Copies the edges of every shard to out under a single header line. The line order of a
+     * parallel run is not defined, so concatenating the shards gives the same result.
+     */
+    static void merge(List<File> shards, OutputStream out) throws IOException {
+        if (BinaryEdges.isBinary(shards.get(0))) {
+            mergeBinary(shards, out);
+            return;
+        }
+        byte[] header = (HEADER + System.lineSeparator()).getBytes();
+        out.write(header);
+        for (File shard : shards) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(shard))) {
+                // the first line is copied unless it is the header
+                ByteArrayOutputStream first = new ByteArrayOutputStream();
+                int b;
+                while ((b = in.read()) != -1) {
+                    first.write(b);
+                    if (b == '\n') break;
+                }
+                if (!first.toString().trim().equals(HEADER)) first.writeTo(out);
+                copy(in, out);
+            }
+        }
+    }
+
+    /**
+     * Binary shards (--binary) share the name table, so the records of every shard follow the
+     * header of the first one.
+     */
+    static void mergeBinary(List<File> shards, OutputStream out) throws IOException {
+        BinaryEdges first = BinaryEdges.open(shards.get(0));
+        out.write(BinaryEdges.header(first.getNames(), first.getFlags()));
+        for (File shard : shards) {
+            BinaryEdges edges = BinaryEdges.open(shard);
+            if (!edges.getNames().equals(first.getNames()) || edges.getFlags() != first.getFlags())
+                throw new IOException(shard + " is not a shard of the same run as " + shards.get(0));
+            try (InputStream in = new BufferedInputStream(new FileInputStream(shard))) {
+                long skip = edges.getHeaderBytes();
+                while (skip > 0) skip -= in.skip(skip);
+                copy(in, out);
+            }
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(chunk)) > 0)
+            out.write(chunk, 0, n);
+    }
+}
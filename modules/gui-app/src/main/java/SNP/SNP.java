@@ -1,30 +1,31 @@
 package SNP;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.BufferedReader;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicLong;
 //Parallelization
 import java.util.concurrent.*;
 
-public class SNP extends Observable {
+import Engine.BinaryEdges;
+import Engine.Clusters;
+import Engine.Coordinator;
+import Engine.EdgeBuffer;
+import Engine.EdgeWriter;
+import Engine.Edges;
+import Engine.FastaReader;
+import Engine.Nearest;
+import Engine.Triangle;
+import Engine.Worker;
 
-    private static class Triplet<A, B, C> {
-        final A first;
-        final B second;
-        final C third;
-    
-        public Triplet(A first, B second, C third) {
-            this.first = first;
-            this.second = second;
-            this.third = third;
-        }
-    }
+public class SNP extends Observable {
 
     private File inputFile;
     private File outputFile;
@@ -36,6 +37,12 @@ public class SNP extends Observable {
     private boolean use_stdin = false;
     private boolean use_stdout = false;
     private boolean input_as_pairs = false;
+    private File clusters_file = null;
+    private boolean binary = false;
+    private int nearest = 0;
+    private File reference_file = null;
+    private boolean query_vs_query = false;
+    private int coordinator_port = 0;
 
     public void setInputAsPairs(boolean input_as_pairs) {
         this.input_as_pairs = input_as_pairs;
@@ -68,6 +75,25 @@ public class SNP extends Observable {
     public void setIgnoreAllGaps(boolean ignoreAllGaps) {
         this.ignoreAllGaps = ignoreAllGaps;
     }
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    public void setClustersFile(File clusters_file) {
+        this.clusters_file = clusters_file;
+    }
+    public void setNearest(int nearest) {
+        this.nearest = nearest;
+    }
+    public void setReferenceFile(File reference_file) {
+        this.reference_file = reference_file;
+    }
+    public void setQueryVsQuery(boolean query_vs_query) {
+        this.query_vs_query = query_vs_query;
+    }
+    public void setCoordinatorPort(int coordinator_port) {
+        this.coordinator_port = coordinator_port;
+    }
 
 
     public void snpFasta() {
@@ -81,10 +107,16 @@ public class SNP extends Observable {
             } else {
                 seqs = read_fasta(inputFile);
             }
+            if (reference_file != null) {
+                ArrayList<Seq> references = read_fasta(reference_file);
+                if (!use_stdout) System.out.println("Calculating distances...");
+                snp(seqs, references);
+                return;
+            }
             if (!use_stdout) System.out.println("Calculating distances...");
             snp(seqs);
         }
-        catch(FileNotFoundException e) {
+        catch(IOException e) {
             e.printStackTrace();
         }
         finally {
@@ -93,158 +125,481 @@ public class SNP extends Observable {
     }
 
     public void snp(ArrayList<Seq> seqs) {
-        if (this.cores == 1) {
+        if (this.coordinator_port > 0) {
+            snp_coordinator(seqs);
+        } else if (this.nearest > 0) {
+            snp_nearest(seqs);
+        } else if (this.cores == 1 && !this.binary) {
             snp_sequential(seqs);
         } else {
             snp_parallel(seqs);
         }
     }
 
+    /**
+     * Query-vs-reference mode: only pairs of a query and a reference (and with query_vs_query,
+     * pairs of two queries) are measured. The query comes first on each line.
+     */
+    public void snp(ArrayList<Seq> queries, ArrayList<Seq> references) {
+        ArrayList<Seq> seqs = new ArrayList<>(queries.size() + references.size());
+        seqs.addAll(queries);
+        seqs.addAll(references);
+        int q = queries.size();
+
+        EdgeWriter writer = null;
+        if (use_stdout)
+            writer = new EdgeWriter(System.out, false);
+        else if (outputFile != null) {
+            try {
+                writer = new EdgeWriter(new BufferedOutputStream(new FileOutputStream(outputFile)), true);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+        writeHeader(writer, seqs);
+        EdgeWriter edges = writer;
+        Clusters clusters = clusters_file != null ? new Clusters(seqs.size()) : null;
+
+        int size = Triangle.tileSize(averageBytes(seqs));
+        List<Triangle.Tile> tiles = Triangle.tiles(q, seqs.size(), 0, q, size);
+        if (this.query_vs_query)
+            tiles.addAll(Triangle.tiles(q, size));
+        long pairs_count = tiles.stream().mapToLong(Triangle.Tile::pairs).sum();
+        AtomicLong pairs_done = new AtomicLong();
+        long startTime = System.nanoTime();
+
+        int max = maxDistance();
+        Triangle.run(tiles, this.cores, tile -> {
+            EdgeBuffer report = edges != null ? edges.buffer() : null;
+            for (int i = tile.rowFrom; i < tile.rowTo; ++i) {
+                Seq seq1 = seqs.get(i);
+                for (int j = tile.colFrom, end = tile.colEnd(i); j < end; ++j) {
+                    Seq seq2 = seqs.get(j);
+                    int d = snp(seq1, seq2, max);
+                    if (d <= this.edgeThreshold) {
+                        if (clusters != null) clusters.addEdge(i, j);
+                        if (report == null) continue;
+                        appendEdge(report, seqs, j, i, d);
+                        if (report.isFull()) {
+                            edges.write(report);
+                            report = edges.buffer();
+                        }
+                    }
+                }
+            }
+            if (report != null) edges.write(report);
+            long pairs = tile.pairs();
+            long done = pairs_done.addAndGet(pairs);
+            update_percent_complete(pairs_count, done - pairs, done, startTime);
+        });
+
+        if (edges != null) {
+            try {
+                edges.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        writeClusters(clusters, seqs);
+        setChanged();
+        notifyObservers(100);
+    }
+
     public void snp_sequential(ArrayList<Seq> seqs) {
         //sequential version
         long pairs_count = ((long) seqs.size() * (seqs.size() - 1)) / 2;
         long current_pair = 0;
         long startTime = System.nanoTime(), estimatedTime;
 
-        PrintWriter f = null;
+        EdgeWriter writer = null;
         if (use_stdout)
-            System.out.println("Source,Target,Distance");
-        else {
+            writer = new EdgeWriter(System.out, false);
+        else if (outputFile != null) {
             try {
-                f = new PrintWriter(new BufferedWriter(new FileWriter(outputFile)));
+                writer = new EdgeWriter(new BufferedOutputStream(new FileOutputStream(outputFile)), true);
             } catch (IOException e) {
                 e.printStackTrace();
+                return;
             }
-            f.println("Source,Target,Distance");
         }
+        writeHeader(writer, seqs);
+        Clusters clusters = clusters_file != null ? new Clusters(seqs.size()) : null;
+        int max = maxDistance();
+        EdgeBuffer report = writer != null ? writer.buffer() : null;
         for (int i = 1; i < seqs.size(); ++i) {
             if (!use_stdout) System.out.print("Processing " + i + " of " + seqs.size() + " sequences...\r");
             for (int j = 0; j < i; ++ j) {
-                int d = snp(seqs.get(i), seqs.get(j));
+                int d = snp(seqs.get(i), seqs.get(j), max);
                 if (d <= this.edgeThreshold) {
-                    if (use_stdout)
-                        System.out.println(String.format("%s,%s,%d", seqs.get(i).getName(), seqs.get(j).getName(), d));
-                    else
-                        f.println(String.format("%s,%s,%d", seqs.get(i).getName(), seqs.get(j).getName(), d));
+                    if (clusters != null)
+                        clusters.addEdge(i, j);
+                    if (report != null) {
+                        appendEdge(report, seqs, i, j, d);
+                        if (report.isFull()) {
+                            writer.write(report);
+                            report = writer.buffer();
+                        }
+                    }
                 }
                 ++current_pair;
                 update_percent_complete(pairs_count, current_pair, startTime);
             }
         }
-        if (!use_stdout) {
-            f.flush();
-            f.close();
+        if (writer != null) {
+            writer.write(report);
+            try {
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
+        writeClusters(clusters, seqs);
         setChanged();
         notifyObservers(100);
         return;
     }
 
     public void snp_parallel(ArrayList<Seq> seqs){
-        if (this.cores >= seqs.size()) {
-            this.cores = seqs.size()-1;
+        int threads = Math.max(1, Math.min(cores, seqs.size() - 1));
+
+        if (!use_stdout) System.out.println("Creating thread pool with " + threads + " threads...");
+        EdgeWriter writer = null;
+        if (use_stdout)
+            writer = new EdgeWriter(System.out, false);
+        else if (outputFile != null) {
+            try {
+                writer = new EdgeWriter(new BufferedOutputStream(new FileOutputStream(outputFile)), true);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
         }
+        writeHeader(writer, seqs);
+        EdgeWriter edges = writer;
+        Clusters clusters = clusters_file != null ? new Clusters(seqs.size()) : null;
+
+        long pairs_count = ((long) seqs.size() * (seqs.size() - 1)) / 2;
+        AtomicLong pairs_done = new AtomicLong();
+        long startTime = System.nanoTime();
+        List<Triangle.Tile> tiles = Triangle.tiles(seqs.size(), Triangle.tileSize(averageBytes(seqs)));
+
+        int max = maxDistance();
+        Triangle.run(tiles, threads, tile -> {
+            EdgeBuffer report = edges != null ? edges.buffer() : null;
+            for (int i = tile.rowFrom; i < tile.rowTo; ++i) {
+                Seq seq1 = seqs.get(i);
+                for (int j = tile.colFrom, end = tile.colEnd(i); j < end; ++j) {
+                    Seq seq2 = seqs.get(j);
+                    int d = snp(seq1, seq2, max);
+                    if (d <= this.edgeThreshold) {
+                        if (clusters != null) clusters.addEdge(i, j);
+                        if (report == null) continue;
+                        appendEdge(report, seqs, i, j, d);
+                        if (report.isFull()) {
+                            edges.write(report);
+                            report = edges.buffer();
+                        }
+                    }
+                }
+            }
+            if (report != null) edges.write(report);
+            long pairs = tile.pairs();
+            long done = pairs_done.addAndGet(pairs);
+            update_percent_complete(pairs_count, done - pairs, done, startTime);
+        });
 
-        if (!use_stdout) System.out.println("Creating thread pool with " + this.cores + " threads...");
-        ExecutorService executor = Executors.newFixedThreadPool(this.cores);
-        List<Future<Triplet<Integer, Integer, Integer>>> futures = new ArrayList<>();
-        AtomicReference<PrintWriter> f = new AtomicReference<>();
+        if (edges != null) {
+            try {
+                edges.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        writeClusters(clusters, seqs);
+        setChanged();
+        notifyObservers(100);
+        return;
+    }
 
+    /**
+     * For every sequence, its nearest sequences (at most edgeThreshold away), nearest first.
+     * Both ends of a pair keep it, so each pair can be listed twice.
+     */
+    public void snp_nearest(ArrayList<Seq> seqs) {
+        EdgeWriter writer;
         if (use_stdout)
-            System.out.println("Source,Target,Distance");
-        else {
+            writer = new EdgeWriter(System.out, false);
+        else if (outputFile != null) {
             try {
-                f.set(new PrintWriter(new BufferedWriter(new FileWriter(outputFile))));
+                writer = new EdgeWriter(new BufferedOutputStream(new FileOutputStream(outputFile)), true);
             } catch (IOException e) {
                 e.printStackTrace();
+                return;
             }
-            f.get().println("Source,Target,Distance");
         }
+        else return;
+        writeHeader(writer, seqs);
 
-        long pairs_count = (seqs.size() * (seqs.size() - 1)) / 2;
-        long current_pair = 0;
-        long startTime = System.nanoTime(), estimatedTime;
+        Nearest neighbours = new Nearest(seqs.size(), this.nearest);
+        long pairs_count = ((long) seqs.size() * (seqs.size() - 1)) / 2;
+        AtomicLong pairs_done = new AtomicLong();
+        long startTime = System.nanoTime();
+        List<Triangle.Tile> tiles = Triangle.tiles(seqs.size(), Triangle.tileSize(averageBytes(seqs)));
 
-        for (int i = 1; i < seqs.size(); ++i) {
-            if (!use_stdout) System.out.print("Processing " + i + " of " + seqs.size() + " sequences...\r");
-            for (int j = 0; j < i; ++ j) {
-                final int row = i;
-                final int col = j;
-                final Seq seq1 = seqs.get(row);
-                final Seq seq2 = seqs.get(col);
-                final int L = seq1.getSeq().length();
-
-                futures.add(executor.submit( () -> {
-                    int d = snp(seq1, seq2);
+        int max = maxDistance();
+        Triangle.run(tiles, this.cores, tile -> {
+            Nearest.Heap[] rows = neighbours.local(tile.rowFrom, tile.rowTo);
+            Nearest.Heap[] cols = neighbours.local(tile.colFrom, tile.colTo);
+            for (int i = tile.rowFrom; i < tile.rowTo; ++i) {
+                Seq seq1 = seqs.get(i);
+                for (int j = tile.colFrom, end = tile.colEnd(i); j < end; ++j) {
+                    int d = snp(seq1, seqs.get(j), max);
                     if (d <= this.edgeThreshold) {
-                        if (use_stdout)
-                            System.out.println(String.format("%s,%s,%d", seq1.getName(), seq2.getName(), d));
-                        else
-                            f.get().println(String.format("%s,%s,%d", seq1.getName(), seq2.getName(), d));
+                        rows[i - tile.rowFrom].offer(d, j);
+                        cols[j - tile.colFrom].offer(d, i);
                     }
-                    return new Triplet<>(row, col, d);
-                }));
+                }
+            }
+            neighbours.merge(tile.rowFrom, rows);
+            neighbours.merge(tile.colFrom, cols);
+            long pairs = tile.pairs();
+            long done = pairs_done.addAndGet(pairs);
+            update_percent_complete(pairs_count, done - pairs, done, startTime);
+        });
+
+        EdgeBuffer report = writer.buffer();
+        for (int i = 0; i < seqs.size(); ++i) {
+            int source = i;
+            EdgeBuffer out = report;
+            neighbours.forEach(i, (j, d) -> appendEdge(out, seqs, source, j, (int) d));
+            if (report.isFull()) {
+                writer.write(report);
+                report = writer.buffer();
+            }
+        }
+        writer.write(report);
+        try {
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        setChanged();
+        notifyObservers(100);
+    }
 
+    /**
+     * Distributed all-vs-all: this process serves the tiles to workers started with --worker,
+     * which compute them, and writes the edges as the tiles come back.
+     */
+    public void snp_coordinator(ArrayList<Seq> seqs) {
+        EdgeWriter writer = null;
+        byte[] job;
+        try {
+            job = workerJob(seqs);
+            if (use_stdout)
+                writer = new EdgeWriter(System.out, false);
+            else if (outputFile != null)
+                writer = new EdgeWriter(new BufferedOutputStream(new FileOutputStream(outputFile)), true);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        writeHeader(writer, seqs);
+        EdgeWriter edges_out = writer;
+        Clusters clusters = clusters_file != null ? new Clusters(seqs.size()) : null;
 
-                if (futures.size() > 1000 || pairs_count < 1000) {
-                    for(Future<Triplet<Integer, Integer, Integer>> future: futures) {
-                        try {
-                            future.get();
-                        } catch (InterruptedException | ExecutionException e) {
-                            e.printStackTrace();
-                        }
-                        ++current_pair;
-                        update_percent_complete(pairs_count, current_pair, startTime);
-                    }
-                    futures.clear();
+        List<Triangle.Tile> tiles = Triangle.tiles(seqs.size(), Coordinator.TILE_SIZE);
+        long pairs_count = ((long) seqs.size() * (seqs.size() - 1)) / 2;
+        AtomicLong pairs_done = new AtomicLong();
+        long startTime = System.nanoTime();
+        Coordinator coordinator = new Coordinator("SNP", job, tiles, (tile, edges) -> {
+            EdgeBuffer report = edges_out != null ? edges_out.buffer() : null;
+            for (int k = 0; k < edges.size(); ++k) {
+                int i = edges.source(k), j = edges.target(k);
+                if (clusters != null) clusters.addEdge(i, j);
+                if (report == null) continue;
+                appendEdge(report, seqs, i, j, (int) edges.distance(k));
+                if (report.isFull()) {
+                    edges_out.write(report);
+                    report = edges_out.buffer();
                 }
             }
+            if (report != null) edges_out.write(report);
+            long pairs = tile.pairs();
+            long done = pairs_done.addAndGet(pairs);
+            update_percent_complete(pairs_count, done - pairs, done, startTime);
+        });
+        try {
+            coordinator.run(this.coordinator_port);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
 
-        for (Future<Triplet<Integer, Integer, Integer>> future: futures) {
+        if (edges_out != null) {
             try {
-                future.get();
-            } catch (InterruptedException | ExecutionException e) {
+                edges_out.close();
+            } catch (IOException e) {
                 e.printStackTrace();
             }
-            ++current_pair;
-            update_percent_complete(pairs_count, current_pair, startTime);
-        }
-
-        executor.shutdown();
-        if (!use_stdout) {
-            f.get().flush();
-            f.get().close();
         }
+        writeClusters(clusters, seqs);
         setChanged();
         notifyObservers(100);
-        return;
     }
 
+    /**
+     * Settings and sequences a worker needs to compute the tiles of seqs, as read by workerJob(in).
+     */
+    private byte[] workerJob(List<Seq> seqs) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeFloat(this.edgeThreshold);
+        out.writeBoolean(this.ignoreAmbiguities);
+        out.writeBoolean(this.ignoreTerminalGaps);
+        out.writeBoolean(this.ignoreAllGaps);
+        out.writeInt(seqs.size());
+        for (Seq seq : seqs) {
+            byte[] codes = seq.getSeq_enc();
+            out.writeInt(codes.length);
+            out.write(codes);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Worker side of snp_coordinator: edges at or below the threshold, as in snp_parallel.
+     */
+    public static Worker.Job workerJob(DataInputStream in) throws IOException {
+        SNP snp = new SNP();
+        snp.edgeThreshold = in.readFloat();
+        snp.ignoreAmbiguities = in.readBoolean();
+        snp.ignoreTerminalGaps = in.readBoolean();
+        snp.ignoreAllGaps = in.readBoolean();
+        ArrayList<Seq> seqs = new ArrayList<>();
+        for (int i = 0, n = in.readInt(); i < n; ++i) {
+            byte[] codes = new byte[in.readInt()];
+            in.readFully(codes);
+            seqs.add(new Seq(String.valueOf(i), codes));
+        }
+        long bytes_per_seq = averageBytes(seqs);
+        int max = snp.maxDistance();
+        return new Worker.Job() {
+            @Override
+            public void compute(Triangle.Tile tile, Edges edges) {
+                for (int i = tile.rowFrom; i < tile.rowTo; ++i) {
+                    Seq seq1 = seqs.get(i);
+                    for (int j = tile.colFrom, end = tile.colEnd(i); j < end; ++j) {
+                        int d = snp.snp(seq1, seqs.get(j), max);
+                        if (d <= snp.edgeThreshold) edges.add(i, j, d);
+                    }
+                }
+            }
+
+            @Override
+            public long bytesPerSequence() {
+                return bytes_per_seq;
+            }
+        };
+    }
+
+    private void appendEdge(EdgeBuffer report, List<Seq> seqs, int i, int j, int d) {
+        if (binary)
+            report.appendRecord(i, j, d);
+        else
+            report.append(seqs.get(i).getName()).append(',').append(seqs.get(j).getName()).append(',').appendInt(d).newLine();
+    }
+
+    /**
+     * Header line of the edge list, or the name table of a binary one.
+     */
+    private void writeHeader(EdgeWriter writer, List<Seq> seqs) {
+        if (writer == null) return;
+        if (binary) {
+            List<String> names = new ArrayList<>(seqs.size());
+            for (Seq seq : seqs) names.add(seq.getName());
+            writer.write(writer.buffer().append(BinaryEdges.header(names, BinaryEdges.INTEGER_DISTANCES)));
+        }
+        else writer.writeLine("Source,Target,Distance");
+    }
+
+    private void writeClusters(Clusters clusters, List<Seq> seqs) {
+        if (clusters == null) return;
+        try {
+            clusters.write(clusters_file, i -> seqs.get(i).getName());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Counts differing codes 64 sites at a time: a site differs when any of its code bitplanes
+     * differ, and gap or ambiguity sites are masked out of that word as the flags require.
+     */
     public int snp(Seq s1, Seq s2){
+        return snp(s1, s2, Integer.MAX_VALUE);
+    }
+
+    /**
+     * As snp(s1, s2), but stops counting once past max: every distance over max comes back as max + 1.
+     */
+    public int snp(Seq s1, Seq s2, int max){
         int d = 0;
-        int[] seq1 = s1.getSeq_enc();
-        int[] seq2 = s2.getSeq_enc();
+        long[] x = s1.getPlanes();
+        long[] y = s2.getPlanes();
         int start_pos = 0;
-        int end_pos = Math.min(seq1.length, seq2.length);
+        int end_pos = Math.min(s1.length(), s2.length());
         if (this.ignoreTerminalGaps) {
-            int s1s = findBeginningGapsEnd(seq1);
-            int s1e = findTerminalGapsStart(seq1);
-            int s2s = findBeginningGapsEnd(seq2);
-            int s2e = findTerminalGapsStart(seq2);
-            start_pos = Math.max(s1s, s2s);
-            end_pos = Math.min(s1e, s2e);
+            start_pos = Math.max(s1.getLeadingGapsEnd(), s2.getLeadingGapsEnd());
+            end_pos = Math.min(s1.getTrailingGapsStart(), s2.getTrailingGapsStart());
         }
-        for (int i = start_pos; i < end_pos; ++i) {
-            if (seq1[i] != seq2[i]) {
-                if (this.ignoreAllGaps && (seq1[i] == 17 || seq2[i] == 17)) continue;
-                if (this.ignoreAmbiguities && (seq1[i] > 4 || seq2[i] > 4)) continue;
-                d++;
-            }
+        if (start_pos >= end_pos) return 0;
+        int first = start_pos >>> 6, last = (end_pos - 1) >>> 6;
+        for (int w = first; w <= last; ++w) {
+            int base = w * Seq.PLANES;
+            long diff = (x[base] ^ y[base]) | (x[base + 1] ^ y[base + 1]) | (x[base + 2] ^ y[base + 2])
+                    | (x[base + 3] ^ y[base + 3]) | (x[base + 4] ^ y[base + 4]);
+            if (this.ignoreAllGaps) diff &= ~(x[base + Seq.GAP_PLANE] | y[base + Seq.GAP_PLANE]);
+            if (this.ignoreAmbiguities) diff &= ~(x[base + Seq.AMBIG_PLANE] | y[base + Seq.AMBIG_PLANE]);
+            if (w == first) diff &= -1L << (start_pos & 63);
+            if (w == last && (end_pos & 63) != 0) diff &= (1L << (end_pos & 63)) - 1;
+            d += Long.bitCount(diff);
+            if (d > max) return max + 1;
         }
         return d;
     }
 
+    /**
+     * Largest distance that makes an edge; pairs past it need not be counted to the end.
+     */
+    private int maxDistance() {
+        return edgeThreshold >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) Math.floor(edgeThreshold);
+    }
+
+    /**
+     * Progress for work that completes in blocks of pairs; reports each whole percent crossed.
+     */
+    private synchronized void update_percent_complete(long total_pairs_to_compute, long pairs_before, long pairs_after, long startTime) {
+        if (total_pairs_to_compute == 0) return;
+        int percBefore = (int) (pairs_before * 100 / total_pairs_to_compute);
+        int percCompleted = (int) (pairs_after * 100 / total_pairs_to_compute);
+        if (percCompleted == percBefore) return;
+        long estimatedTime = System.nanoTime() - startTime;
+
+        if (!use_stdout) System.out.print(String.format("%d%% completed in ", percCompleted));
+        if (!use_stdout) System.out.print(TimeUnit.SECONDS.convert(estimatedTime, TimeUnit.NANOSECONDS));
+        if (!use_stdout) System.out.println(" sec                                ");
+        setChanged();
+        notifyObservers(percCompleted);
+    }
+
+    private static long averageBytes(List<Seq> seqs) {
+        long bytes = 0;
+        for (Seq seq : seqs) bytes += seq.bytes();
+        return seqs.isEmpty() ? 0 : bytes / seqs.size();
+    }
+
     private void update_percent_complete(long total_pairs_to_compute, long current_pair, long startTime) {
         long estimatedTime;
         int percCompleted;
@@ -266,64 +621,31 @@ public class SNP extends Observable {
         notifyObservers(percCompleted);
     }
 
-    private static int findBeginningGapsEnd(String seq) {
-        int i = 0;
-        while (i < seq.length() && seq.charAt(i) == '-') {
-            ++i;
-        }
-        return i;
-    }
-
-    private static int findBeginningGapsEnd(int[] seq) {
-        int i = 0;
-        while (i < seq.length && seq[i] == 17) {
-            ++i;
-        }
-        return i;
-    }
-
-    private static int findTerminalGapsStart(String seq) {
-        int i = seq.length() - 1;
-        while (i >= 0 && seq.charAt(i) == '-') {
-            --i;
-        }
-        return i;
-    }
-
-    private static int findTerminalGapsStart(int[] seq) {
-        int i = seq.length - 1;
-        while (i >= 0 && seq[i] == 17) {
-            --i;
-        }
-        return i;
-    }
-
-    private static ArrayList<Seq> read_fasta(File inputFile) throws FileNotFoundException {
-        Scanner sc = new Scanner(inputFile);
-        ArrayList<Seq> a = read_seqs(sc);
-        sc.close();
+    private static ArrayList<Seq> read_fasta(File inputFile) throws IOException {
+        ArrayList<Seq> a = new ArrayList<Seq>();
+        FastaReader.read(inputFile, Seq.encoding, (name, codes) -> a.add(new Seq(name, codes)));
         return a;
     }
     public static ArrayList<Seq> read_seqs(Scanner sc) {
         ArrayList<Seq> seqs = new ArrayList<Seq>();
-        String name="", seq="";
+        String name="";
+        StringBuilder seq = new StringBuilder();
         while(sc.hasNextLine()) {
             String line = sc.nextLine().trim();
             if(line.length() == 0) continue;
             if(line.charAt(0)=='>') {
-                if (name.length()!=0) seqs.add(new Seq(name, seq));
+                if (name.length()!=0) seqs.add(new Seq(name, seq.toString()));
                 name = line.substring(1);
-                seq="";
+                seq.setLength(0);
             }
-            else seq=seq.concat(line);
+            else seq.append(line);
         }
-        if(name.length()!=0) seqs.add(new Seq(name, seq));
+        if(name.length()!=0) seqs.add(new Seq(name, seq.toString()));
         return seqs;
     }
-    private static ArrayList<Seq> read_fasta_stdin() {
-        Scanner sc = new Scanner(System.in);
-        ArrayList<Seq> a = read_seqs(sc);
-        sc.close();
+    private static ArrayList<Seq> read_fasta_stdin() throws IOException {
+        ArrayList<Seq> a = new ArrayList<Seq>();
+        FastaReader.read(System.in, Seq.encoding, (name, codes) -> a.add(new Seq(name, codes)));
         return a;
     }
 }
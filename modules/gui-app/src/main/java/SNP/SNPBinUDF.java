@@ -0,0 +1,86 @@
+package SNP;
+
+import Engine.SeqCache;
+import TN93.SeqBlob;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+
+/**
+ * snp_bin(enc1, enc2[, ignoreAmbiguities, ignoreTerminalGaps, ignoreAllGaps[, maxDistance]]):
+ * SNP distance between two sequences stored by encode_seq, with the arguments of SNPUDF.
+ */
+public class SNPBinUDF extends GenericUDF {
+    private transient SNP snp;
+    private transient int max_distance;
+    private transient BinaryObjectInspector[] blobOIs;
+    // Blobs map to their bitplanes, so a blob seen before is measured without decoding
+    private transient SeqCache<Seq> seqs;
+    private transient IntWritable result;
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+        if (arguments.length != 2 && arguments.length != 5 && arguments.length != 6) {
+            throw new UDFArgumentLengthException(
+                    "snp_bin() requires 2, 5 or 6 arguments (enc1, enc2[, ignoreAmbiguities, ignoreTerminalGaps, ignoreAllGaps[, maxDistance]]), got "
+                            + arguments.length);
+        }
+        for (ObjectInspector oi : arguments) {
+            if (oi.getCategory() != Category.PRIMITIVE) {
+                throw new UDFArgumentException("snp_bin only takes primitive types, got " + oi.getCategory() + ":" + oi.getTypeName());
+            }
+        }
+        blobOIs = new BinaryObjectInspector[2];
+        for (int i = 0; i < 2; i++) {
+            if (((PrimitiveObjectInspector) arguments[i]).getPrimitiveCategory() != PrimitiveCategory.BINARY) {
+                throw new UDFArgumentException("snp_bin sequences should be binary (encode_seq), got " + arguments[i].getTypeName());
+            }
+            blobOIs[i] = (BinaryObjectInspector) arguments[i];
+        }
+        snp = new SNP();
+        if (arguments.length >= 5) {
+            snp.setIgnoreAmbiguities(PrimitiveObjectInspectorUtils.getBoolean(SNPUDF.constant(arguments, 2, "ignoreAmbiguities"), (PrimitiveObjectInspector) arguments[2]));
+            snp.setIgnoreTerminalGaps(PrimitiveObjectInspectorUtils.getBoolean(SNPUDF.constant(arguments, 3, "ignoreTerminalGaps"), (PrimitiveObjectInspector) arguments[3]));
+            snp.setIgnoreAllGaps(PrimitiveObjectInspectorUtils.getBoolean(SNPUDF.constant(arguments, 4, "ignoreAllGaps"), (PrimitiveObjectInspector) arguments[4]));
+        }
+        max_distance = arguments.length == 6
+                ? PrimitiveObjectInspectorUtils.getInt(SNPUDF.constant(arguments, 5, "maxDistance"), (PrimitiveObjectInspector) arguments[5])
+                : Integer.MAX_VALUE;
+        seqs = new SeqCache<>(text -> new Seq("", text), (blob, start, length) -> new Seq("", SeqBlob.codes(blob, start, length)), Seq::bytes);
+        result = new IntWritable();
+        return PrimitiveObjectInspectorFactory.writableIntObjectInspector;
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] arguments) throws HiveException {
+        Seq seq1 = seq(arguments, 0);
+        Seq seq2 = seq(arguments, 1);
+        if (seq1 == null || seq2 == null) return null;
+        int d = snp.snp(seq1, seq2, max_distance);
+        if (d > max_distance) return null;
+        result.set(d);
+        return result;
+    }
+
+    private Seq seq(DeferredObject[] arguments, int i) throws HiveException {
+        Object o = arguments[i] != null ? arguments[i].get() : null;
+        if (o == null) return null;
+        BytesWritable blob = blobOIs[i].getPrimitiveWritableObject(o);
+        return seqs.get(blob.getBytes(), 0, blob.getLength());
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+        return "snp_bin(" + String.join(", ", children) + ")";
+    }
+}
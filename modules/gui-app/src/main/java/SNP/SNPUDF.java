@@ -0,0 +1,88 @@
+package SNP;
+
+import Engine.SeqCache;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorConverter;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorConverter.StringConverter;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.io.IntWritable;
+
+/**
+ * snp(seq1, seq2[, ignoreAmbiguities, ignoreTerminalGaps, ignoreAllGaps[, maxDistance]]): SNP
+ * distance between two sequences. The flags default to true, true, false as on the command
+ * line. With maxDistance, pairs further apart than it stop counting early and give NULL, so
+ * <pre>
+ * WHERE snp(a.seq, b.seq, true, true, false, 15) IS NOT NULL
+ * </pre>
+ * keeps the pairs at most 15 apart. All arguments after the sequences must be constants.
+ */
+public class SNPUDF extends GenericUDF {
+    private transient SNP snp;
+    private transient int max_distance;
+    private transient StringConverter stringConverter;
+    // A self-join sees every sequence many times, so rows reuse the encoded sequences
+    private transient SeqCache<Seq> seqs;
+    private transient IntWritable result;
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+        if (arguments.length != 2 && arguments.length != 5 && arguments.length != 6) {
+            throw new UDFArgumentLengthException(
+                    "snp() requires 2, 5 or 6 arguments (seq1, seq2[, ignoreAmbiguities, ignoreTerminalGaps, ignoreAllGaps[, maxDistance]]), got "
+                            + arguments.length);
+        }
+        for (ObjectInspector oi : arguments) {
+            if (oi.getCategory() != Category.PRIMITIVE) {
+                throw new UDFArgumentException("snp only takes primitive types, got " + oi.getCategory() + ":" + oi.getTypeName());
+            }
+        }
+        snp = new SNP();
+        if (arguments.length >= 5) {
+            snp.setIgnoreAmbiguities(PrimitiveObjectInspectorUtils.getBoolean(constant(arguments, 2, "ignoreAmbiguities"), (PrimitiveObjectInspector) arguments[2]));
+            snp.setIgnoreTerminalGaps(PrimitiveObjectInspectorUtils.getBoolean(constant(arguments, 3, "ignoreTerminalGaps"), (PrimitiveObjectInspector) arguments[3]));
+            snp.setIgnoreAllGaps(PrimitiveObjectInspectorUtils.getBoolean(constant(arguments, 4, "ignoreAllGaps"), (PrimitiveObjectInspector) arguments[4]));
+        }
+        max_distance = arguments.length == 6
+                ? PrimitiveObjectInspectorUtils.getInt(constant(arguments, 5, "maxDistance"), (PrimitiveObjectInspector) arguments[5])
+                : Integer.MAX_VALUE;
+        stringConverter = new PrimitiveObjectInspectorConverter.StringConverter((PrimitiveObjectInspector) arguments[0]);
+        seqs = Seq.textCache();
+        result = new IntWritable();
+        return PrimitiveObjectInspectorFactory.writableIntObjectInspector;
+    }
+
+    static Object constant(ObjectInspector[] arguments, int i, String name) throws UDFArgumentException {
+        if (!ObjectInspectorUtils.isConstantObjectInspector(arguments[i]))
+            throw new UDFArgumentException(name + " must be a constant");
+        return ((ConstantObjectInspector) arguments[i]).getWritableConstantValue();
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] arguments) throws HiveException {
+        String val1 = null;
+        String val2 = null;
+        if (arguments[0] != null && arguments[1] != null) {
+            val1 = (String) stringConverter.convert(arguments[0].get());
+            val2 = (String) stringConverter.convert(arguments[1].get());
+        }
+        if (val1 == null || val2 == null) return null;
+        int d = snp.snp(seqs.get(val1), seqs.get(val2), max_distance);
+        if (d > max_distance) return null;
+        result.set(d);
+        return result;
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+        return "snp(" + String.join(", ", children) + ")";
+    }
+}
@@ -1,5 +1,8 @@
 package SNP;
 
+import Engine.SeqCache;
+
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -28,62 +31,147 @@ public class Seq {
         nucl.put('-', 17); 
     }
 
+    // nucl as flat lookup tables; characters outside nucl (either case) encode as N
+    final static byte[] encoding = new byte[256];
+    final static char[] decoding = new char[18];
+    static {
+        Arrays.fill(encoding, (byte) (int) nucl.get('N'));
+        for (Map.Entry<Character, Integer> e : nucl.entrySet()) {
+            char c = e.getKey();
+            encoding[c] = (byte) (int) e.getValue();
+            encoding[Character.toLowerCase(c)] = (byte) (int) e.getValue();
+            decoding[e.getValue()] = c;
+        }
+    }
+
+    // Each word group holds 64 sites: the five bits of their codes (bit-sliced), a gap plane,
+    // and a plane of codes above U (ambiguities and gaps).
+    final static int PLANES = 7, GAP_PLANE = 5, AMBIG_PLANE = 6;
+
     private String name;
-    private String seq;
-    private int[] seq_enc;
+    private int length;
+    private long[] planes;
     private int effective_len;
     private int effective_start;
     private int effective_end;
+    // First non-gap site, and last non-gap site (-1 if all gaps)
+    private int leading_gaps_end;
+    private int trailing_gaps_start;
     Seq(String name, String seq) {
+        this(name, encode(seq));
+    }
+
+    Seq(String name, byte[] codes) {
         this.name = name;
-        this.seq = seq.toUpperCase();
-        seq_enc = new int[seq.length()];
-        for(int i=0;i<seq.length();++i) {
-            char c = this.seq.charAt(i);
-            if(!nucl.containsKey(c)) seq_enc[i] = nucl.get('N');
-            else seq_enc[i] = nucl.get(c);
+        this.length = codes.length;
+        this.planes = new long[((length + 63) >>> 6) * PLANES];
+        for (int i = 0; i < length; ++i) {
+            int c = codes[i];
+            int base = (i >>> 6) * PLANES;
+            long bit = 1L << (i & 63);
+            for (int k = 0; k < 5; ++k)
+                if ((c & (1 << k)) != 0) planes[base + k] |= bit;
+            if (c == Gap) planes[base + GAP_PLANE] |= bit;
+            if (c > 4) planes[base + AMBIG_PLANE] |= bit;
         }
+        int i = 0;
+        while (i < length && codes[i] == Gap) ++i;
+        this.leading_gaps_end = i;
+        i = length - 1;
+        while (i >= 0 && codes[i] == Gap) --i;
+        this.trailing_gaps_start = i;
         this.effective_len = getEffectiveLength();
+    }
+
+    static byte[] encode(String seq) {
+        byte[] codes = new byte[seq.length()];
+        for (int i = 0; i < codes.length; ++i) {
+            char c = seq.charAt(i);
+            codes[i] = c < 256 ? encoding[c] : encoding['N'];
+        }
+        return codes;
+    }
+
+    /**
+     * Codes of ASCII text in chars[start..start+length), as encode(String) does.
+     */
+    static byte[] encode(byte[] chars, int start, int length) {
+        byte[] codes = new byte[length];
+        for (int i = 0; i < length; ++i)
+            codes[i] = encoding[chars[start + i] & 0xFF];
+        return codes;
+    }
 
+    /**
+     * Cache of sequences by their text, for callers that see the same sequences many times.
+     */
+    static SeqCache<Seq> textCache() {
+        return new SeqCache<>(text -> new Seq("", text), (chars, start, length) -> new Seq("", encode(chars, start, length)), Seq::bytes);
     }
+
     public String getName() {
         return name;
     }
 
+    /**
+     * Rebuilt from the codes, so characters that are not nucleotide codes read as N.
+     */
     public String getSeq() {
-        return seq;
+        byte[] codes = getSeq_enc();
+        char[] chars = new char[length];
+        for (int i = 0; i < length; ++i)
+            chars[i] = decoding[codes[i]];
+        return new String(chars);
     }
 
-    public int[] getSeq_enc() {
-        return seq_enc;
+    /**
+     * One code per site, decoded from the bitplanes into a new array.
+     */
+    public byte[] getSeq_enc() {
+        byte[] codes = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            int base = (i >>> 6) * PLANES;
+            int c = 0;
+            for (int k = 0; k < 5; ++k)
+                c |= (int) (planes[base + k] >>> (i & 63) & 1) << k;
+            codes[i] = (byte) c;
+        }
+        return codes;
     }
 
     public int getEffective_len() {
         return effective_len;
     }
 
+    int length() {
+        return length;
+    }
+
+    /**
+     * Approximate size of the encoded sites in memory.
+     */
+    long bytes() {
+        return 8L * planes.length;
+    }
+
+    long[] getPlanes() {
+        return planes;
+    }
+
+    int getLeadingGapsEnd() {
+        return leading_gaps_end;
+    }
+
+    int getTrailingGapsStart() {
+        return trailing_gaps_start;
+    }
+
     private int getEffectiveLength() {
-        this.effective_start = 0;
-        for(int i=0;i<seq.length();++i) {
-            char c = seq.charAt(i);
-            if (c == Gap) continue;
-            else {
-                this.effective_start = i;
-                break;
-            }
-        }
-        this.effective_end = seq.length()-1;
-        for (int i=seq.length()-1;i>=0;--i) {
-            char c = seq.charAt(i);
-            if (c == Gap) continue;
-            else {
-                this.effective_end = i;
-                break;
-            }
-        }
+        this.effective_start = leading_gaps_end < length ? leading_gaps_end : 0;
+        this.effective_end = trailing_gaps_start >= 0 ? trailing_gaps_start : length-1;
 
         int len = this.effective_end - this.effective_start + 1;
 
         return len;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,52 @@
+package TN93;
+
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorConverter;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorConverter.StringConverter;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.BytesWritable;
+
+/**
+ * encode_seq(seq): the sequence as a SeqBlob, for storing once in a BINARY column and measuring
+ * with tn93_bin and snp_bin, e.g.
+ * <pre>
+ * CREATE TABLE seqs_enc STORED AS ORC AS SELECT name, encode_seq(seq) AS enc FROM seqs;
+ * </pre>
+ */
+public class EncodeSeqUDF extends GenericUDF {
+    private transient StringConverter stringConverter;
+    private transient BytesWritable result;
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+        if (arguments.length != 1) {
+            throw new UDFArgumentLengthException("encode_seq() requires 1 argument (seq), got " + arguments.length);
+        }
+        if (arguments[0].getCategory() != Category.PRIMITIVE) {
+            throw new UDFArgumentException("encode_seq only takes primitive types, got " + arguments[0].getCategory() + ":" + arguments[0].getTypeName());
+        }
+        stringConverter = new PrimitiveObjectInspectorConverter.StringConverter((PrimitiveObjectInspector) arguments[0]);
+        result = new BytesWritable();
+        return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] arguments) throws HiveException {
+        String seq = arguments[0] != null ? (String) stringConverter.convert(arguments[0].get()) : null;
+        if (seq == null) return null;
+        byte[] blob = SeqBlob.encode(seq);
+        result.set(blob, 0, blob.length);
+        return result;
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+        return "encode_seq(" + String.join(", ", children) + ")";
+    }
+}
@@ -1,5 +1,8 @@
 package TN93;
 
+import Engine.SeqCache;
+
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -18,64 +21,220 @@ public class Seq {
         nucl.put('S', 7);
         nucl.put('W', 8);
         nucl.put('K', 9);
-        nucl.put('M', 10); 
-        nucl.put('B', 11); 
-        nucl.put('D', 12); 
-        nucl.put('H', 13); 
-        nucl.put('V', 14); 
-        nucl.put('N', 15); 
+        nucl.put('M', 10);
+        nucl.put('B', 11);
+        nucl.put('D', 12);
+        nucl.put('H', 13);
+        nucl.put('V', 14);
+        nucl.put('N', 15);
         nucl.put('?', 16);
-        nucl.put('-', 17); 
+        nucl.put('-', 17);
+    }
+
+    // nucl as flat lookup tables; characters outside nucl (either case) encode as N
+    final static byte[] encoding = new byte[256];
+    final static char[] decoding = new char[18];
+    static {
+        Arrays.fill(encoding, (byte) (int) nucl.get('N'));
+        for (Map.Entry<Character, Integer> e : nucl.entrySet()) {
+            char c = e.getKey();
+            encoding[c] = (byte) (int) e.getValue();
+            encoding[Character.toLowerCase(c)] = (byte) (int) e.getValue();
+            decoding[e.getValue()] = c;
+        }
     }
 
+    // A sequence is packed when at most 1/PACK_RATIO of its sites are not A, C, G or T
+    final static int PACK_RATIO = 8;
+
     private String name;
-    private String seq;
-    private int[] seq_enc;
+    private int length;
+    // One code per site; null when the sequence is packed
+    private byte[] seq_enc;
+    // Packed form: 2-bit A/C/G/T codes, 32 sites per word. Every other site (gaps, U and
+    // ambiguities) reads as A in the plane and is listed in other_pos/other_code, ascending.
+    private long[] acgt;
+    private int[] other_pos;
+    private byte[] other_code;
     public int effective_len;
     public int effective_start;
     public int effective_end;
     Seq(String name, String seq) {
+        this(name, encode(seq));
+    }
+
+    Seq(String name, byte[] codes) {
         this.name = name;
-        this.seq = seq.toUpperCase();
-        seq_enc = new int[seq.length()];
-        for(int i=0;i<seq.length();++i) {
-            char c = this.seq.charAt(i);
-            if(!nucl.containsKey(c)) seq_enc[i] = nucl.get('N');
-            else seq_enc[i] = nucl.get(c);
-        }
+        this.length = codes.length;
+        int other = 0;
+        for (byte c : codes)
+            if (c > T) other++;
+        if ((long) other * PACK_RATIO <= length)
+            pack(codes, other);
+        else
+            seq_enc = codes;
         this.effective_len = getEffectiveLength();
+    }
+
+    /**
+     * A sequence in the form SeqBlob stored it, without encoding or scanning the sites again.
+     */
+    Seq(String name, int length, byte[] seq_enc, long[] acgt, int[] other_pos, byte[] other_code, int effective_start, int effective_end) {
+        this.name = name;
+        this.length = length;
+        this.seq_enc = seq_enc;
+        this.acgt = acgt;
+        this.other_pos = other_pos;
+        this.other_code = other_code;
+        this.effective_start = effective_start;
+        this.effective_end = effective_end;
+        this.effective_len = effective_end - effective_start + 1;
+    }
+
+    static byte[] encode(String seq) {
+        byte[] codes = new byte[seq.length()];
+        for (int i = 0; i < codes.length; ++i) {
+            char c = seq.charAt(i);
+            codes[i] = c < 256 ? encoding[c] : encoding['N'];
+        }
+        return codes;
+    }
+
+    /**
+     * Codes of ASCII text in chars[start..start+length), as encode(String) does.
+     */
+    static byte[] encode(byte[] chars, int start, int length) {
+        byte[] codes = new byte[length];
+        for (int i = 0; i < length; ++i)
+            codes[i] = encoding[chars[start + i] & 0xFF];
+        return codes;
+    }
+
+    /**
+     * Cache of sequences by their text, for callers that see the same sequences many times.
+     */
+    static SeqCache<Seq> textCache() {
+        return new SeqCache<>(text -> new Seq("", text), (chars, start, length) -> new Seq("", encode(chars, start, length)), Seq::bytes);
+    }
 
+    private void pack(byte[] codes, int other) {
+        acgt = new long[(length + 31) >>> 5];
+        other_pos = new int[other];
+        other_code = new byte[other];
+        int k = 0;
+        for (int i = 0; i < length; ++i) {
+            int c = codes[i];
+            if (c > T) {
+                other_pos[k] = i;
+                other_code[k++] = (byte) c;
+            }
+            else acgt[i >>> 5] |= (long) c << ((i & 31) << 1);
+        }
     }
+
     public String getName() {
         return name;
     }
 
+    /**
+     * Rebuilt from the codes, so characters that are not nucleotide codes read as N.
+     */
     public String getSeq() {
-        return seq;
+        byte[] codes = getSeq_enc();
+        char[] chars = new char[length];
+        for (int i = 0; i < length; ++i)
+            chars[i] = decoding[codes[i]];
+        return new String(chars);
     }
 
-    public int[] getSeq_enc() {
-        return seq_enc;
+    /**
+     * One code per site. For packed sequences this decodes into a new array.
+     */
+    public byte[] getSeq_enc() {
+        if (seq_enc != null) return seq_enc;
+        byte[] codes = new byte[length];
+        for (int i = 0; i < length; ++i)
+            codes[i] = (byte) planeCode(acgt, i);
+        for (int k = 0; k < other_pos.length; ++k)
+            codes[other_pos[k]] = other_code[k];
+        return codes;
     }
 
     public int getEffective_len() {
         return effective_len;
     }
 
+    int length() {
+        return length;
+    }
+
+    /**
+     * Approximate size of the encoded sites in memory.
+     */
+    long bytes() {
+        return seq_enc != null ? seq_enc.length : 8L * acgt.length + 5L * other_pos.length;
+    }
+
+    /**
+     * Hash of the encoded sites. Equal sites always get the same form, packed or not.
+     */
+    int sitesHash() {
+        if (seq_enc != null) return Arrays.hashCode(seq_enc);
+        return 31 * (31 * Arrays.hashCode(acgt) + Arrays.hashCode(other_pos)) + Arrays.hashCode(other_code);
+    }
+
+    boolean sameSites(Seq other) {
+        if (length != other.length || isPacked() != other.isPacked()) return false;
+        if (seq_enc != null) return Arrays.equals(seq_enc, other.seq_enc);
+        return Arrays.equals(acgt, other.acgt) && Arrays.equals(other_pos, other.other_pos)
+                && Arrays.equals(other_code, other.other_code);
+    }
+
+    boolean isPacked() {
+        return acgt != null;
+    }
+
+    long[] getAcgt() {
+        return acgt;
+    }
+
+    int[] getOther_pos() {
+        return other_pos;
+    }
+
+    byte[] getOther_code() {
+        return other_code;
+    }
+
+    static int planeCode(long[] plane, int i) {
+        return (int) (plane[i >>> 5] >>> ((i & 31) << 1)) & 3;
+    }
+
+    /**
+     * Code the pair kernels read at site i: the real code, or A for packed non-ACGT sites.
+     */
+    int storedCode(int i) {
+        return seq_enc != null ? seq_enc[i] : planeCode(acgt, i);
+    }
+
+    int codeAt(int i) {
+        if (seq_enc != null) return seq_enc[i];
+        int k = Arrays.binarySearch(other_pos, i);
+        return k >= 0 ? other_code[k] : planeCode(acgt, i);
+    }
+
     private int getEffectiveLength() {
         this.effective_start = 0;
-        for(int i=0;i<seq.length();++i) {
-            char c = seq.charAt(i);
-            if (c == Gap) continue;
+        for(int i=0;i<length;++i) {
+            if (codeAt(i) == Gap) continue;
             else {
                 this.effective_start = i;
                 break;
             }
         }
-        this.effective_end = seq.length()-1;
-        for (int i=seq.length()-1;i>=0;--i) {
-            char c = seq.charAt(i);
-            if (c == Gap) continue;
+        this.effective_end = length-1;
+        for (int i=length-1;i>=0;--i) {
+            if (codeAt(i) == Gap) continue;
             else {
                 this.effective_end = i;
                 break;
@@ -86,4 +245,4 @@ public class Seq {
 
         return len;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,125 @@
+package TN93;
+
+import Engine.SeqCache;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A sequence encoded once into a compact binary value, for storing in a BINARY column and
+ * measuring later without parsing the text again. All numbers are little-endian:
+ * <pre>
+ * byte    version (1)
+ * byte    form: 0 one code per site, 1 packed as in Seq
+ * int32   length, effective_start, effective_end
+ * int32   ambiguous sites (codes U to ?), gap sites
+ * form 0: byte[length] codes
+ * form 1: int32 k, int64[(length + 31) / 32] A/C/G/T planes, int32[k] other_pos, byte[k] other_code
+ * </pre>
+ * Codes are the ones Seq (and SNP.Seq) use.
+ */
+public class SeqBlob {
+    final static byte VERSION = 1;
+    final static int HEADER_BYTES = 2 + 5 * 4;
+    private final static int CODES = 0, PACKED = 1;
+
+    public static byte[] encode(String text) {
+        return encode(new Seq("", text));
+    }
+
+    static byte[] encode(Seq seq) {
+        int length = seq.length();
+        int ambiguous = 0, gaps = 0;
+        byte[] codes = seq.getSeq_enc();
+        for (byte c : codes) {
+            if (c == Seq.Gap) gaps++;
+            else if (c > Seq.T) ambiguous++;
+        }
+        ByteBuffer b;
+        if (seq.isPacked()) {
+            long[] acgt = seq.getAcgt();
+            int[] other_pos = seq.getOther_pos();
+            byte[] other_code = seq.getOther_code();
+            b = header(HEADER_BYTES + 4 + 8 * acgt.length + 5 * other_pos.length, PACKED, seq, ambiguous, gaps);
+            b.putInt(other_pos.length);
+            for (long w : acgt) b.putLong(w);
+            for (int p : other_pos) b.putInt(p);
+            b.put(other_code);
+        } else {
+            b = header(HEADER_BYTES + length, CODES, seq, ambiguous, gaps);
+            b.put(codes);
+        }
+        return b.array();
+    }
+
+    private static ByteBuffer header(int bytes, int form, Seq seq, int ambiguous, int gaps) {
+        ByteBuffer b = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        b.put(VERSION).put((byte) form);
+        b.putInt(seq.length()).putInt(seq.effective_start).putInt(seq.effective_end);
+        b.putInt(ambiguous).putInt(gaps);
+        return b;
+    }
+
+    /**
+     * The sequence stored in blob[off..off+len).
+     */
+    static Seq decode(byte[] blob, int off, int len) {
+        ByteBuffer b = open(blob, off, len);
+        int form = b.get();
+        int length = b.getInt(), effective_start = b.getInt(), effective_end = b.getInt();
+        b.position(b.position() + 8);
+        if (form == CODES) {
+            byte[] codes = new byte[length];
+            b.get(codes);
+            return new Seq("", length, codes, null, null, null, effective_start, effective_end);
+        }
+        int k = b.getInt();
+        long[] acgt = new long[(length + 31) >>> 5];
+        int[] other_pos = new int[k];
+        byte[] other_code = new byte[k];
+        b.asLongBuffer().get(acgt);
+        b.position(b.position() + 8 * acgt.length);
+        b.asIntBuffer().get(other_pos);
+        b.position(b.position() + 4 * k);
+        b.get(other_code);
+        return new Seq("", length, null, acgt, other_pos, other_code, effective_start, effective_end);
+    }
+
+    /**
+     * One code per site of the sequence stored in blob[off..off+len), as SNP.Seq takes them.
+     */
+    public static byte[] codes(byte[] blob, int off, int len) {
+        return decode(blob, off, len).getSeq_enc();
+    }
+
+    public static int length(byte[] blob, int off) {
+        return field(blob, off, 0);
+    }
+
+    public static int ambiguities(byte[] blob, int off) {
+        return field(blob, off, 3);
+    }
+
+    public static int gaps(byte[] blob, int off) {
+        return field(blob, off, 4);
+    }
+
+    private static int field(byte[] blob, int off, int k) {
+        return ByteBuffer.wrap(blob).order(ByteOrder.LITTLE_ENDIAN).getInt(off + 2 + 4 * k);
+    }
+
+    private static ByteBuffer open(byte[] blob, int off, int len) {
+        if (len < HEADER_BYTES || blob[off] != VERSION)
+            throw new IllegalArgumentException("Not an encoded sequence (encode_seq version " + VERSION + ")");
+        ByteBuffer b = ByteBuffer.wrap(blob, off, len).slice().order(ByteOrder.LITTLE_ENDIAN);
+        b.get();
+        return b;
+    }
+
+    /**
+     * Cache of sequences by their blob; a blob seen before costs no decoding and no allocation.
+     */
+    static SeqCache<Seq> cache() {
+        return new SeqCache<>(text -> new Seq("", text), SeqBlob::decode, Seq::bytes);
+    }
+}
@@ -1,5 +1,9 @@
 package TN93;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -8,38 +12,29 @@ import java.io.PrintWriter;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicLong;
 //Parallelization
 import java.util.concurrent.*;
 
+import Engine.BinaryEdges;
+import Engine.Checkpoint;
+import Engine.Clusters;
+import Engine.Coordinator;
+import Engine.DistanceMatrix;
+import Engine.EdgeBuffer;
+import Engine.EdgeWriter;
+import Engine.Edges;
+import Engine.FastaReader;
+import Engine.Nearest;
+import Engine.SequenceStore;
+import Engine.Triangle;
+import Engine.Worker;
+
 import static java.lang.Math.log;
 
 public class TN93 extends Observable {
-    // Used for parallelization
-    private static class Triplet<A, B, C> {
-        final A first;
-        final B second;
-        final C third;
-    
-        public Triplet(A first, B second, C third) {
-            this.first = first;
-            this.second = second;
-            this.third = third;
-        }
-    }
-
-    public static class Pair<A, B> {
-        final A first;
-        final B second;
-    
-        public Pair(A first, B second) {
-            this.first = first;
-            this.second = second;
-        }
-    }
-
-
     private float edgeThreshold = 1;
     private File inputFile;
     private File outputFile;
@@ -50,6 +45,24 @@ public class TN93 extends Observable {
     private boolean use_stdout = false;
     private boolean input_as_pairs = false;
     private boolean enumerate_sequences = false; 
+    private boolean binary = false;
+    private boolean early_exit = true;
+    private boolean collapse_identical = false;
+    private File clusters_file = null;
+    private int nearest = 0;
+    private File reference_file = null;
+    private boolean query_vs_query = false;
+    private File store_file = null;
+    private File matrix_file = null;
+    private int checkpoint_interval = 0;
+    private boolean resume = false;
+    // Shard shard_index (from 0) of shard_count; one shard means the whole triangle
+    private int shard_index = 0;
+    private int shard_count = 1;
+    private int coordinator_port = 0;
+    // Code pairs of the columns compressColumns dropped; null when scanning whole sequences
+    private int[] invariant_pair_counts = null;
+    private int invariant_sites = 0;
     
     enum RESOLVE_METHOD {
     	RESOLVE,
@@ -74,6 +87,10 @@ public class TN93 extends Observable {
         this.enumerate_sequences = enumerate_sequences;
     }
 
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
     public void setInputFile(File inputFile) {
         this.inputFile = inputFile;
     }
@@ -98,6 +115,55 @@ public class TN93 extends Observable {
         this.input_as_pairs = input_as_pairs;
     }
 
+    public void setEarlyExit(boolean early_exit) {
+        this.early_exit = early_exit;
+    }
+
+    public void setCollapseIdentical(boolean collapse_identical) {
+        this.collapse_identical = collapse_identical;
+    }
+
+    public void setClustersFile(File clusters_file) {
+        this.clusters_file = clusters_file;
+    }
+
+    public void setNearest(int nearest) {
+        this.nearest = nearest;
+    }
+
+    public void setReferenceFile(File reference_file) {
+        this.reference_file = reference_file;
+    }
+
+    public void setQueryVsQuery(boolean query_vs_query) {
+        this.query_vs_query = query_vs_query;
+    }
+
+    public void setStoreFile(File store_file) {
+        this.store_file = store_file;
+    }
+
+    public void setMatrixFile(File matrix_file) {
+        this.matrix_file = matrix_file;
+    }
+
+    public void setCheckpointInterval(int checkpoint_interval) {
+        this.checkpoint_interval = checkpoint_interval;
+    }
+
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    public void setShard(int shard_index, int shard_count) {
+        this.shard_index = shard_index;
+        this.shard_count = shard_count;
+    }
+
+    public void setCoordinatorPort(int coordinator_port) {
+        this.coordinator_port = coordinator_port;
+    }
+
     final static int[][] resolutions = {
         // A,C,G,T
         {1, 0, 0, 0},  // A             -> A (0) (Adenine)
@@ -141,54 +207,70 @@ public class TN93 extends Observable {
         0.0,  // GAP
     };
 
+    final static int CODES = resolutions.length;
+
+    // Contribution of a single site with codes (c1, c2) to the 4x4 pair counts, one table per
+    // ambiguity mode, indexed as [c1 * CODES + c2][j * 4 + k]. Each table is built once by running
+    // the per-site rules of the matching countNucl_* method on every code pair.
+    final static double[][] resolveTable = buildPairTable(RESOLVE_METHOD.RESOLVE);
+    final static double[][] averageTable = buildPairTable(RESOLVE_METHOD.AVERAGE);
+    final static double[][] gapmmTable = buildPairTable(RESOLVE_METHOD.GAPMM);
+    final static double[][] skipTable = buildPairTable(RESOLVE_METHOD.SKIP);
+    final static boolean[] resolvableTable = buildResolvableTable();
+
+    private static double[][] buildPairTable(RESOLVE_METHOD method) {
+        double[][] table = new double[CODES * CODES][16];
+        for (int c1 = 0; c1 < CODES; c1++) {
+            for (int c2 = 0; c2 < CODES; c2++) {
+                int[] s1 = {c1};
+                int[] s2 = {c2};
+                double[][] site = new double[4][4];
+                switch (method) {
+                    case RESOLVE: countNucl_resolve(s1, s2, site); break;
+                    case AVERAGE: countNucl_average(s1, s2, site); break;
+                    case GAPMM: countNucl_gapmm(s1, s2, site); break;
+                    case SKIP: countNucl_skip(s1, s2, site); break;
+                }
+                for (int j = 0; j < 4; j++)
+                    for (int k = 0; k < 4; k++)
+                        table[c1 * CODES + c2][j * 4 + k] = site[j][k];
+            }
+        }
+        return table;
+    }
+
+    private static boolean[] buildResolvableTable() {
+        boolean[] table = new boolean[CODES * CODES];
+        for (int c1 = 0; c1 < CODES; c1++)
+            for (int c2 = 0; c2 < CODES; c2++)
+                table[c1 * CODES + c2] = resolvable(c1, c2);
+        return table;
+    }
+
     public void tn93Fasta() {
         PrintWriter f = null;
         try {
             if (!use_stdout) System.out.println("Reading input file...");
             ArrayList<Seq> seqs;
             if (input_as_pairs) {
-            	BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
-            	String line =null;
-            	//Read as batch to prevent out of memeory errors.
-            	int batchSize=10000; //TODO - paramaterize this.
-                int count=0; 
-                ArrayList<Pair<Pair<String, Seq>, Pair<String, Seq>>> pairs = new ArrayList<>();
-                
-            	while ((line = br.readLine()) != null) {
-
-                    if(line.length() == 0) continue;
-                    String[] fields = line.split(",");
-                    if (fields.length != 4) {
-                        System.err.println("Error: expected 4 fields per line, got " + fields.length);
-                        System.exit(1);
-                    }
-                    String name1 = fields[0];
-                    String seq1 = fields[1];
-                    String name2 = fields[2];
-                    String seq2 = fields[3];
-
-                    pairs.add(new Pair<Pair<String, Seq>, Pair<String, Seq>>(
-                        new Pair<String, Seq>(name1, new Seq(name1, seq1)),
-                        new Pair<String, Seq>(name2, new Seq(name2, seq2))
-                    ));
-                	count++;
-                	
-                	if (count>=batchSize) {
-                    	tn93_pairs(pairs); //process this batch
-    	            	pairs = new ArrayList<>(); //reset pairs array
-    	            	count=0;//reset counts
-                	}
-            	} 
-                // process the last batch
-                if (pairs.size() > 0) {
-                    tn93_pairs(pairs);
-                }
+                tn93_pairs(new BufferedReader(new InputStreamReader(System.in)));
         		return;
             } else if (use_stdin) {
                 seqs = read_fasta_stdin();
             } else {
                 seqs = read_fasta(inputFile);
             }
+            if (store_file != null) {
+                if (!use_stdout) System.out.println("Calculating distances...");
+                tn93_incremental(seqs);
+                return;
+            }
+            if (reference_file != null) {
+                ArrayList<Seq> references = read_fasta(reference_file);
+                if (!use_stdout) System.out.println("Calculating distances...");
+                tn93(seqs, references);
+                return;
+            }
             if (!use_stdout) System.out.println("Calculating distances...");
             tn93(seqs);
         }
@@ -204,311 +286,940 @@ public class TN93 extends Observable {
     }
 
     public void tn93(ArrayList<Seq> seqs) {
-        if (cores > 1)
-            tn93_parallel(seqs);
-        else 
-            tn93_sequential(seqs);
-    }
-    
-    public void tn93_pairs(ArrayList<Pair<Pair<String, Seq>, Pair<String, Seq>>> pairs) {
-        if (cores > 1)
-            tn93_parallel_pairs(pairs);
-        else 
-            tn93_sequential_pairs(pairs);
+        ArrayList<Seq> compressed = compressColumns(seqs);
+        try {
+            if (matrix_file != null)
+                tn93_matrix(compressed);
+            else if (coordinator_port > 0)
+                tn93_coordinator(compressed);
+            else if (nearest > 0)
+                tn93_nearest(compressed);
+            else if (cores > 1 || checkpointInterval() > 0 || shard_count > 1)
+                tn93_parallel(compressed);
+            else 
+                tn93_sequential(compressed);
+        } finally {
+            invariant_pair_counts = null;
+            invariant_sites = 0;
+        }
     }
 
-    public void tn93_parallel(ArrayList<Seq> seqs){
-        if (cores >= seqs.size()) {
-            cores = seqs.size()-1;
+    /**
+     * Edges of seqs at most edgeThreshold apart, computed on the triangle engine and returned in
+     * memory for callers that hand them on themselves, such as TN93UDTF. The tiles run on pool,
+     * which the caller keeps across calls.
+     */
+    Edges tn93_edges(ArrayList<Seq> seqs, ForkJoinPool pool) {
+        ArrayList<Seq> compressed = compressColumns(seqs);
+        try {
+            Edges edges = new Edges();
+            double threshold = scanThreshold();
+            List<Triangle.Tile> tiles = Triangle.tiles(compressed.size(), Triangle.tileSize(averageBytes(compressed)));
+            Triangle.run(tiles, pool, tile -> {
+                Edges local = new Edges();
+                for (int i = tile.rowFrom; i < tile.rowTo; ++i) {
+                    Seq seq1 = compressed.get(i);
+                    for (int j = tile.colFrom, end = tile.colEnd(i); j < end; ++j) {
+                        double d = tn93(seq1, compressed.get(j), threshold);
+                        if (d == -0) d = 0;
+                        if (reported(d)) local.add(i, j, d);
+                    }
+                }
+                synchronized (edges) {
+                    edges.addAll(local);
+                }
+            });
+            return edges;
+        } finally {
+            invariant_pair_counts = null;
+            invariant_sites = 0;
         }
+    }
 
-        if (!use_stdout) System.out.println("Creating thread pool with " + cores + " threads...");
-        ExecutorService executor = Executors.newFixedThreadPool(cores);
-        List<Future<Triplet<Integer, Integer, Double>>> futures = new ArrayList<>();
-        AtomicReference<PrintWriter> writerRef = new AtomicReference<>();
+    /**
+     * Query-vs-reference mode: only pairs of a query and a reference (and with query_vs_query,
+     * pairs of two queries) are measured. Edge indices count the queries first, then the references.
+     */
+    public void tn93(ArrayList<Seq> queries, ArrayList<Seq> references) {
+        ArrayList<Seq> seqs = new ArrayList<>(queries.size() + references.size());
+        seqs.addAll(queries);
+        seqs.addAll(references);
+        ArrayList<Seq> compressed = compressColumns(seqs);
+        try {
+            tn93_bipartite(compressed, queries.size());
+        } finally {
+            invariant_pair_counts = null;
+            invariant_sites = 0;
+        }
+    }
 
+    /**
+     * For an alignment (all sequences the same length), drops the columns where every sequence
+     * has the same code. Such a column adds the same code pair to every pair of sequences, so the
+     * dropped columns are counted once into invariant_pair_counts, which every pair scan then
+     * starts from; only the variable columns are scanned per pair.
+     */
+    private ArrayList<Seq> compressColumns(ArrayList<Seq> seqs) {
+        if (seqs.size() < 2) return seqs;
+        int L = seqs.get(0).length();
+        for (Seq seq : seqs)
+            if (seq.length() != L) return seqs;
+
+        byte[] first = seqs.get(0).getSeq_enc();
+        boolean[] variable = new boolean[L];
+        for (Seq seq : seqs) {
+            byte[] codes = seq.getSeq_enc();
+            for (int c = 0; c < L; ++c)
+                if (codes[c] != first[c]) variable[c] = true;
+        }
+        int[] columns = new int[L];
+        int kept = 0;
+        int[] pair_counts = new int[CODES * CODES];
+        for (int c = 0; c < L; ++c) {
+            if (variable[c]) columns[kept++] = c;
+            else pair_counts[first[c] * CODES + first[c]]++;
+        }
+        if (kept == L) return seqs;
+        if (!use_stdout) System.out.println("Scanning " + kept + " variable of " + L + " columns");
+
+        ArrayList<Seq> compressed = new ArrayList<>(seqs.size());
+        for (Seq seq : seqs) {
+            byte[] codes = seq.getSeq_enc();
+            byte[] kept_codes = new byte[kept];
+            for (int k = 0; k < kept; ++k)
+                kept_codes[k] = codes[columns[k]];
+            compressed.add(new Seq(seq.getName(), kept_codes));
+        }
+        invariant_pair_counts = pair_counts;
+        invariant_sites = L - kept;
+        return compressed;
+    }
+    
+    public void tn93_parallel(ArrayList<Seq> seqs){
+        int[][] groups = identicalGroups(seqs);
+        ArrayList<Seq> reps = representatives(seqs, groups);
+        int threads = Math.max(1, Math.min(cores, reps.size() - 1));
+        List<Triangle.Tile> tiles = Triangle.tiles(reps.size(), Triangle.tileSize(averageBytes(reps)));
+        if (shard_count > 1) {
+            tiles = Triangle.shard(tiles, shard_index, shard_count);
+            if (!use_stdout) System.out.println("Shard " + (shard_index + 1) + " of " + shard_count + ": " + tiles.size() + " tiles");
+        }
 
-        if (!use_stdout){
+        boolean checkpointing = checkpointInterval() > 0 && outputFile != null && !use_stdout;
+        long fingerprint = checkpointing ? fingerprint(seqs, tiles.size()) : 0;
+        Checkpoint resumed = null;
+        if (checkpointing && resume) {
             try {
-                writerRef.set(new PrintWriter(new BufferedWriter(new FileWriter(outputFile))));
+                resumed = Checkpoint.read(checkpointFile());
             } catch (IOException e) {
                 e.printStackTrace();
+                return;
+            }
+            if (resumed == null)
+                System.out.println("No checkpoint found, starting from the beginning");
+            else if (resumed.getFingerprint() != fingerprint) {
+                System.err.println("Checkpoint " + checkpointFile() + " is for another input or other settings; not resuming");
+                return;
             }
-            writerRef.get().println("Source,Target,Distance");
         }
-            
 
-        long total_pairs_to_compute = ((long) seqs.size() * seqs.size() - seqs.size())/2;
-        long current_pair = 0;
-        long startTime = System.nanoTime(), estimatedTime;
+        if (!use_stdout) System.out.println("Creating thread pool with " + threads + " threads...");
+        EdgeWriter writer;
+        FileOutputStream file = null;
+        try {
+            if (checkpointing) {
+                if (resumed != null) resumed.truncate(outputFile);
+                file = new FileOutputStream(outputFile, resumed != null);
+                writer = new EdgeWriter(new BufferedOutputStream(file), true);
+            }
+            else writer = edgeWriter();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        Clusters clusters = null;
+        if (clusters_file != null)
+            clusters = resumed != null ? new Clusters(seqs.size(), resumed.getClusters()) : new Clusters(seqs.size());
+
+        // On resume the header and the copy edges are already in the output; with shards the
+        // first shard has the copy edges
+        if (resumed == null) {
+            if (!use_stdout || binary)
+                writeHeader(writer, seqs);
+            EdgeBuffer copies = writer != null ? writer.buffer() : null;
+            for (int r = 0; r < reps.size() && shard_index == 0; ++r) {
+                if (groups[r].length < 2) continue;
+                double d = tn93(reps.get(r), reps.get(r));
+                if (d == -0) d = 0;
+                if (reported(d)) {
+                    if (clusters != null) clusters.addEdges(groups[r]);
+                    if (copies != null) appendCopyEdges(copies, seqs, groups[r], d);
+                }
+            }
+            if (copies != null) writer.write(copies);
+        }
 
-        if (!use_stdout) System.out.println("Submitting jobs...");
-        for (int i = 1; i < seqs.size(); ++i) {
-            if (!use_stdout) System.out.print("Processing " + i + " of " + seqs.size() + " sequences...\r");
-            for (int j = 0; j < i; ++ j) {
-                final int row = i;
-                final int col = j;
-                final Seq seq1 = seqs.get(row);
-                final Seq seq2 = seqs.get(col);
-                
-                futures.add(executor.submit( () -> {
-                    double d = tn93(seq1, seq2);
-                    String report = "";
+        int tiles_done = resumed != null ? resumed.getTilesDone() : 0;
+        long total_pairs_to_compute = tiles.stream().mapToLong(Triangle.Tile::pairs).sum();
+        AtomicLong pairs_done = new AtomicLong(tiles.subList(0, tiles_done).stream().mapToLong(Triangle.Tile::pairs).sum());
+        long startTime = System.nanoTime();
+        double threshold = scanThreshold();
+        Clusters edge_clusters = clusters;
+
+        if (!use_stdout) System.out.println("Computing " + (tiles.size() - tiles_done) + " of " + tiles.size() + " tiles...");
+        Triangle.TileTask task = tile -> {
+            EdgeBuffer report = writer != null ? writer.buffer() : null;
+            for (int i = tile.rowFrom; i < tile.rowTo; ++i) {
+                Seq seq1 = reps.get(i);
+                for (int j = tile.colFrom, end = tile.colEnd(i); j < end; ++j) {
+                    double d = tn93(seq1, reps.get(j), threshold);
                     if (d == -0) d = 0;
-                    if (d < this.edgeThreshold){
-                        if (enumerate_sequences) {
-                            report = String.format("%d,%d,%f", row, col, d);
+                    if (reported(d)) {
+                        if (edge_clusters != null) edge_clusters.addEdges(groups[i], groups[j]);
+                        if (report == null) continue;
+                        appendEdges(report, seqs, groups[i], groups[j], d);
+                        if (report.isFull()) {
+                            writer.write(report);
+                            report = writer.buffer();
                         }
-                        else
-                            report = String.format("%s,%s,%f", seq1.getName(), seq2.getName(), d);
-
-                        if (use_stdout)
-                            System.out.println(report);
-                        else
-                            writerRef.get().println(report);
                     }
-                    return new Triplet<>(row, col, d);
-                }));
-
-                if (futures.size() > 1000 || total_pairs_to_compute < 1000 ) {
-                    for (Future<Triplet<Integer, Integer, Double>> future : futures) {
-                        try {
-                            future.get();
-                        }
-                        catch (InterruptedException | ExecutionException e) {
-                            e.printStackTrace();
-                        }
-        
-                        current_pair++;
-                        update_percent_complete(total_pairs_to_compute, current_pair, startTime); 
-                    }
-                    futures.clear();
                 }
             }
-        }
-
-        for (Future<Triplet<Integer, Integer, Double>> future : futures) {
+            if (report != null) writer.write(report);
+            long pairs = tile.pairs();
+            long done = pairs_done.addAndGet(pairs);
+            update_percent_complete(total_pairs_to_compute, done - pairs, done, startTime);
+        };
+        if (checkpointing) {
             try {
-                future.get();         
-            }
-            catch (InterruptedException | ExecutionException e) {
+                runCheckpointed(tiles, threads, task, averageBytes(reps), writer, file, resumed, fingerprint, clusters);
+            } catch (IOException e) {
                 e.printStackTrace();
+                closeEdgeWriter(writer);
+                return;
             }
-
-            current_pair++;
-            update_percent_complete(total_pairs_to_compute, current_pair, startTime); 
         }
+        else Triangle.run(tiles, threads, task);
+
+        closeEdgeWriter(writer);
+        if (checkpointing) checkpointFile().delete();
+        writeClusters(clusters, seqs);
+
+        writeMapFile(seqs);
+
+        setChanged();
+        notifyObservers(100);
+        return;
+    }
 
-        executor.shutdown();
-        if (!use_stdout) {
-            writerRef.get().flush();
-            writerRef.get().close();
+    /**
+     * Distributed all-vs-all: this process serves the tiles to workers started with --worker,
+     * which compute them, and writes the edges as the tiles come back.
+     */
+    public void tn93_coordinator(ArrayList<Seq> seqs) {
+        int[][] groups = identicalGroups(seqs);
+        ArrayList<Seq> reps = representatives(seqs, groups);
+        EdgeWriter writer;
+        byte[] job;
+        try {
+            job = workerJob(reps);
+            writer = edgeWriter();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
         }
+        writeHeader(writer, seqs);
+        Clusters clusters = clusters_file != null ? new Clusters(seqs.size()) : null;
+
+        EdgeBuffer copies = writer != null ? writer.buffer() : null;
+        for (int r = 0; r < reps.size(); ++r) {
+            if (groups[r].length < 2) continue;
+            double d = tn93(reps.get(r), reps.get(r));
+            if (d == -0) d = 0;
+            if (reported(d)) {
+                if (clusters != null) clusters.addEdges(groups[r]);
+                if (copies != null) appendCopyEdges(copies, seqs, groups[r], d);
+            }
+        }
+        if (copies != null) writer.write(copies);
 
-        //output a mapfile between index and name
-        if (enumerate_sequences) {
-            try {
-                PrintWriter mapfile = new PrintWriter(new BufferedWriter(new FileWriter(outputFile + ".map")));
-                for (int i = 0; i < seqs.size(); ++i) {
-                    mapfile.println(i + "," + seqs.get(i).getName());
+        List<Triangle.Tile> tiles = Triangle.tiles(reps.size(), Coordinator.TILE_SIZE);
+        long total_pairs_to_compute = ((long) reps.size() * reps.size() - reps.size())/2;
+        AtomicLong pairs_done = new AtomicLong();
+        long startTime = System.nanoTime();
+        Coordinator coordinator = new Coordinator("TN93", job, tiles, (tile, edges) -> {
+            EdgeBuffer report = writer != null ? writer.buffer() : null;
+            for (int k = 0; k < edges.size(); ++k) {
+                int i = edges.source(k), j = edges.target(k);
+                if (clusters != null) clusters.addEdges(groups[i], groups[j]);
+                if (report == null) continue;
+                appendEdges(report, seqs, groups[i], groups[j], edges.distance(k));
+                if (report.isFull()) {
+                    writer.write(report);
+                    report = writer.buffer();
                 }
-                mapfile.flush();
-                mapfile.close();
-            } catch (IOException e) {
-                e.printStackTrace();
             }
+            if (report != null) writer.write(report);
+            long pairs = tile.pairs();
+            long done = pairs_done.addAndGet(pairs);
+            update_percent_complete(total_pairs_to_compute, done - pairs, done, startTime);
+        });
+        try {
+            coordinator.run(coordinator_port);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
 
+        closeEdgeWriter(writer);
+        writeClusters(clusters, seqs);
+        writeMapFile(seqs);
+
         setChanged();
         notifyObservers(100);
-        return;
+    }
+
+    /**
+     * Settings and sequences a worker needs to compute the tiles of seqs, as read by workerJob(in).
+     */
+    private byte[] workerJob(List<Seq> seqs) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeFloat(edgeThreshold);
+        out.writeUTF(ambiguityMode());
+        out.writeDouble(max_ambiguity_fraction);
+        out.writeBoolean(early_exit);
+        out.writeInt(invariant_sites);
+        out.writeBoolean(invariant_pair_counts != null);
+        if (invariant_pair_counts != null)
+            for (int count : invariant_pair_counts) out.writeInt(count);
+        out.writeInt(seqs.size());
+        for (Seq seq : seqs) {
+            byte[] codes = seq.getSeq_enc();
+            out.writeInt(codes.length);
+            out.write(codes);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Worker side of tn93_coordinator: edges below the threshold, as in tn93_parallel.
+     */
+    public static Worker.Job workerJob(DataInputStream in) throws IOException {
+        TN93 tn93 = new TN93();
+        tn93.edgeThreshold = in.readFloat();
+        tn93.ambiguityHandling = in.readUTF();
+        tn93.max_ambiguity_fraction = in.readDouble();
+        tn93.early_exit = in.readBoolean();
+        tn93.invariant_sites = in.readInt();
+        if (in.readBoolean()) {
+            tn93.invariant_pair_counts = new int[CODES * CODES];
+            for (int c = 0; c < tn93.invariant_pair_counts.length; ++c)
+                tn93.invariant_pair_counts[c] = in.readInt();
+        }
+        ArrayList<Seq> seqs = new ArrayList<>();
+        for (int i = 0, n = in.readInt(); i < n; ++i) {
+            byte[] codes = new byte[in.readInt()];
+            in.readFully(codes);
+            seqs.add(new Seq(String.valueOf(i), codes));
+        }
+        long bytes_per_seq = averageBytes(seqs);
+        double threshold = tn93.scanThreshold();
+        return new Worker.Job() {
+            @Override
+            public void compute(Triangle.Tile tile, Edges edges) {
+                for (int i = tile.rowFrom; i < tile.rowTo; ++i) {
+                    Seq seq1 = seqs.get(i);
+                    for (int j = tile.colFrom, end = tile.colEnd(i); j < end; ++j) {
+                        double d = tn93.tn93(seq1, seqs.get(j), threshold);
+                        if (d == -0) d = 0;
+                        if (tn93.reported(d)) edges.add(i, j, d);
+                    }
+                }
+            }
+
+            @Override
+            public long bytesPerSequence() {
+                return bytes_per_seq;
+            }
+        };
+    }
+
+    // Decimals of the distances in edge lists, as %f writes them
+    public final static int DECIMALS = 6;
+    // Work (pairs times sequence bytes) per core between checkpoint barriers, about a second
+    final static long CHECKPOINT_BATCH_WORK = 1L << 28;
+    final static int DEFAULT_CHECKPOINT_INTERVAL = 600;
+
+    private int checkpointInterval() {
+        return checkpoint_interval > 0 ? checkpoint_interval : resume ? DEFAULT_CHECKPOINT_INTERVAL : 0;
+    }
+
+    private File checkpointFile() {
+        return new File(outputFile.getPath() + ".checkpoint");
+    }
+
+    /**
+     * Runs the tiles not done yet in batches. Between two batches no tile is half written, so once
+     * the checkpoint interval has passed, the output is flushed and synced to disk and a
+     * checkpoint of the tiles done and the output length is written; a restart then loses at
+     * most one interval plus one batch.
+     */
+    private void runCheckpointed(List<Triangle.Tile> tiles, int threads, Triangle.TileTask task, long bytes_per_seq, EdgeWriter writer,
+                                 FileOutputStream file, Checkpoint resumed, long fingerprint, Clusters clusters) throws IOException {
+        int from = resumed != null ? resumed.getTilesDone() : 0;
+        long base_bytes = resumed != null ? resumed.getOutputBytes() : 0;
+        long batch_work = CHECKPOINT_BATCH_WORK * threads;
+        long interval = TimeUnit.SECONDS.toNanos(checkpointInterval());
+        long last = System.nanoTime();
+        while (from < tiles.size()) {
+            int to = from;
+            long work = 0;
+            while (to < tiles.size() && work < batch_work)
+                work += tiles.get(to++).pairs() * Math.max(1, bytes_per_seq);
+            Triangle.run(tiles.subList(from, to), threads, task);
+            from = to;
+            if (from < tiles.size() && System.nanoTime() - last >= interval) {
+                long bytes = base_bytes + writer.flush();
+                file.getFD().sync();
+                new Checkpoint(fingerprint, from, bytes, clusters).write(checkpointFile());
+                last = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Identifies the input and the settings that change the output, so a checkpoint is only
+     * resumed by the same run.
+     */
+    private long fingerprint(List<Seq> seqs, int tiles) {
+        long h = seqs.size();
+        for (Seq seq : seqs)
+            h = 31 * (31 * h + seq.getName().hashCode()) + seq.sitesHash();
+        h = 31 * h + Float.floatToIntBits(edgeThreshold);
+        h = 31 * h + String.valueOf(ambiguityHandling).hashCode();
+        h = 31 * h + Double.hashCode(max_ambiguity_fraction);
+        h = 31 * h + (collapse_identical ? 1 : 0);
+        h = 31 * h + (enumerate_sequences ? 1 : 0);
+        h = 31 * h + (binary ? 1 : 0);
+        h = 31 * h + (clusters_file != null ? 1 : 0);
+        h = 31 * h + shard_index * 1000003L + shard_count;
+        return 31 * h + tiles;
     }
 
     public void tn93_sequential(ArrayList<Seq> seqs) {
-        PrintWriter f = null;
-        if (use_stdout)
-        	System.out.println("Source,Target,Distance");
-        else {
-            try {
-                f = new PrintWriter(new BufferedWriter(new FileWriter(outputFile)));
-            } catch (IOException e) {
-                e.printStackTrace();
+        int[][] groups = identicalGroups(seqs);
+        ArrayList<Seq> reps = representatives(seqs, groups);
+        EdgeWriter writer;
+        try {
+            writer = edgeWriter();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        writeHeader(writer, seqs);
+        Clusters clusters = clusters_file != null ? new Clusters(seqs.size()) : null;
+
+        EdgeBuffer report = writer != null ? writer.buffer() : null;
+        for (int r = 0; r < reps.size(); ++r) {
+            if (groups[r].length < 2) continue;
+            double distance = tn93(reps.get(r), reps.get(r));
+            if (distance == -0) distance = 0;
+            if (reported(distance)) {
+                if (clusters != null) clusters.addEdges(groups[r]);
+                if (report != null) appendCopyEdges(report, seqs, groups[r], distance);
             }
-            f.println("Source,Target,Distance");
         }
-          
-        long total_pairs_to_compute = (seqs.size() * seqs.size() - seqs.size())/2;
+
+        long total_pairs_to_compute = ((long) reps.size() * reps.size() - reps.size())/2;
         long current_pair = 0;
-        long startTime = System.nanoTime(), estimatedTime;
+        long startTime = System.nanoTime();
+        double threshold = scanThreshold();
 
-        for (int i = 1; i < seqs.size(); ++i) {
-            if (!use_stdout) System.out.print("Processing " + i + " of " + seqs.size() + " sequences...\r");
+        for (int i = 1; i < reps.size(); ++i) {
+            if (!use_stdout) System.out.print("Processing " + i + " of " + reps.size() + " sequences...\r");
             for (int j = 0; j < i; ++ j) {
-                double distance = tn93(seqs.get(i), seqs.get(j));
-                String report = "";
+                double distance = tn93(reps.get(i), reps.get(j), threshold);
 
                 if (distance == -0) distance = 0;
-                if (distance <= edgeThreshold) {
-                    if (enumerate_sequences) {
-                        report = String.format("%d,%d,%f", i, j, distance);
+                if (reported(distance)) {
+                    if (clusters != null) clusters.addEdges(groups[i], groups[j]);
+                    if (report != null) {
+                        appendEdges(report, seqs, groups[i], groups[j], distance);
+                        if (report.isFull()) {
+                            writer.write(report);
+                            report = writer.buffer();
                         }
-                    else
-                        report = String.format("%s,%s,%f", seqs.get(i).getName(), seqs.get(j).getName(), distance);
-                    
-                    if (use_stdout)
-                        System.out.println(report);
-                    else
-                        f.println(report);
+                    }
                 }
                 current_pair++;
                 update_percent_complete(total_pairs_to_compute, current_pair, startTime);
             }
         }
-        if (!use_stdout) {
-            f.flush();
-            f.close();
+        if (report != null) writer.write(report);
+        closeEdgeWriter(writer);
+        writeClusters(clusters, seqs);
+
+        writeMapFile(seqs);
+        setChanged();
+        notifyObservers(100);
+        return;
+    }
+
+    /**
+     * Complete distance matrix, without threshold or early exit. Each tile writes its distances
+     * in place into the memory-mapped DistanceMatrix, so the matrix stays off the heap.
+     */
+    public void tn93_matrix(ArrayList<Seq> seqs) {
+        List<String> names = new ArrayList<>(seqs.size());
+        for (Seq seq : seqs) names.add(seq.getName());
+        DistanceMatrix matrix;
+        try {
+            matrix = DistanceMatrix.create(matrix_file, names);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
         }
+        long total_pairs_to_compute = ((long) seqs.size() * seqs.size() - seqs.size())/2;
+        AtomicLong pairs_done = new AtomicLong();
+        long startTime = System.nanoTime();
+        List<Triangle.Tile> tiles = Triangle.tiles(seqs.size(), Triangle.tileSize(averageBytes(seqs)));
+        Triangle.run(tiles, cores, tile -> {
+            for (int i = tile.rowFrom; i < tile.rowTo; ++i) {
+                Seq seq1 = seqs.get(i);
+                for (int j = tile.colFrom, end = tile.colEnd(i); j < end; ++j) {
+                    double d = tn93(seq1, seqs.get(j));
+                    if (d == -0) d = 0;
+                    matrix.set(i, j, (float) d);
+                }
+            }
+            long pairs = tile.pairs();
+            long done = pairs_done.addAndGet(pairs);
+            update_percent_complete(total_pairs_to_compute, done - pairs, done, startTime);
+        });
+        matrix.force();
+        setChanged();
+        notifyObservers(100);
+    }
 
-        //output a mapfile between index and name
-        if (enumerate_sequences) {
-            try {
-                PrintWriter mapfile = new PrintWriter(new BufferedWriter(new FileWriter(outputFile + ".map")));
-                for (int i = 0; i < seqs.size(); ++i) {
-                    mapfile.println(i + "," + seqs.get(i).getName());
+    /**
+     * For every sequence, its nearest sequences (at most edgeThreshold away), nearest first.
+     * Both ends of a pair keep it, so each pair can be listed twice. The k-th distance found so
+     * far for the two sequences bounds the early exit of each pair.
+     */
+    public void tn93_nearest(ArrayList<Seq> seqs) {
+        EdgeWriter writer;
+        try {
+            writer = edgeWriter();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (writer == null) return;
+        writeHeader(writer, seqs);
+
+        Nearest neighbours = new Nearest(seqs.size(), nearest);
+        long total_pairs_to_compute = ((long) seqs.size() * seqs.size() - seqs.size())/2;
+        AtomicLong pairs_done = new AtomicLong();
+        long startTime = System.nanoTime();
+        List<Triangle.Tile> tiles = Triangle.tiles(seqs.size(), Triangle.tileSize(averageBytes(seqs)));
+
+        Triangle.run(tiles, cores, tile -> {
+            Nearest.Heap[] rows = neighbours.local(tile.rowFrom, tile.rowTo);
+            Nearest.Heap[] cols = neighbours.local(tile.colFrom, tile.colTo);
+            for (int i = tile.rowFrom; i < tile.rowTo; ++i) {
+                Seq seq1 = seqs.get(i);
+                Nearest.Heap row = rows[i - tile.rowFrom];
+                for (int j = tile.colFrom, end = tile.colEnd(i); j < end; ++j) {
+                    Nearest.Heap col = cols[j - tile.colFrom];
+                    double threshold = scanThreshold();
+                    if (early_exit) threshold = Math.min(threshold, Math.max(row.bound(), col.bound()));
+                    double d = tn93(seq1, seqs.get(j), threshold);
+                    if (d == -0) d = 0;
+                    if (reported(d)) {
+                        row.offer(d, j);
+                        col.offer(d, i);
+                    }
                 }
-                mapfile.flush();
-                mapfile.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+            }
+            neighbours.merge(tile.rowFrom, rows);
+            neighbours.merge(tile.colFrom, cols);
+            long pairs = tile.pairs();
+            long done = pairs_done.addAndGet(pairs);
+            update_percent_complete(total_pairs_to_compute, done - pairs, done, startTime);
+        });
+
+        EdgeBuffer report = writer.buffer();
+        for (int i = 0; i < seqs.size(); ++i) {
+            int source = i;
+            EdgeBuffer out = report;
+            neighbours.forEach(i, (j, d) -> appendEdge(out, seqs, source, j, d));
+            if (report.isFull()) {
+                writer.write(report);
+                report = writer.buffer();
             }
         }
+        writer.write(report);
+        closeEdgeWriter(writer);
+        writeMapFile(seqs);
+
         setChanged();
         notifyObservers(100);
-        return;
     }
 
-    public void tn93_parallel_pairs(ArrayList<Pair<Pair<String, Seq>, Pair<String, Seq>>> pairs) {
-        if (cores >= pairs.size()) {
-            cores = pairs.size()-1;
+    /**
+     * Pairs of seqs[0..queries-1] with seqs[queries..], as tiles of the block below the queries'
+     * triangle, so each tile keeps a few references cached against a few queries. The query
+     * comes first on each line.
+     */
+    public void tn93_bipartite(ArrayList<Seq> seqs, int queries) {
+        EdgeWriter writer;
+        try {
+            writer = edgeWriter();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
         }
+        writeHeader(writer, seqs);
+        Clusters clusters = clusters_file != null ? new Clusters(seqs.size()) : null;
 
-        if (!use_stdout) System.out.println("Creating thread pool with " + cores + " threads...");
-        ExecutorService executor = Executors.newFixedThreadPool(cores);
-        List<Future<Triplet<Integer, Integer, Double>>> futures = new ArrayList<>();
-        AtomicReference<PrintWriter> writerRef = new AtomicReference<>();
+        int size = Triangle.tileSize(averageBytes(seqs));
+        List<Triangle.Tile> tiles = Triangle.tiles(queries, seqs.size(), 0, queries, size);
+        if (query_vs_query)
+            tiles.addAll(Triangle.tiles(queries, size));
+        computeTiles(seqs, tiles, writer, clusters, true);
 
+        closeEdgeWriter(writer);
+        writeClusters(clusters, seqs);
+        writeMapFile(seqs);
 
-        if (use_stdout) 
-            System.out.println("Source,Target,Distance");
-        else {
-            try {
-                writerRef.set(new PrintWriter(new BufferedWriter(new FileWriter(outputFile))));
-            } catch (IOException e) {
-                e.printStackTrace();
+        setChanged();
+        notifyObservers(100);
+    }
+
+    /**
+     * Incremental all-vs-all over the sequences kept in store_file by earlier runs. Input
+     * sequences whose name is already stored are skipped; the new ones are measured against the
+     * stored ones and each other, their edges are appended to the edge list, and they are added to
+     * the store together with the updated cluster state.
+     */
+    public void tn93_incremental(ArrayList<Seq> input) throws IOException {
+        ArrayList<Seq> seqs = new ArrayList<>();
+        Clusters stored_clusters = null;
+        if (store_file.exists()) {
+            SequenceStore store = SequenceStore.read(store_file);
+            if (!"TN93".equals(store.getMethod()) || store.getThreshold() != edgeThreshold
+                    || !ambiguityMode().equals(store.getAmbiguityHandling()) || store.getMaxAmbiguityFraction() != max_ambiguity_fraction) {
+                System.err.println("Sequence store " + store_file + " was built by " + store.getMethod()
+                        + " with threshold " + (float) store.getThreshold() + ", ambiguity " + store.getAmbiguityHandling()
+                        + " and fraction " + store.getMaxAmbiguityFraction() + "; use the same settings or a new store");
+                return;
             }
-            writerRef.get().println("Source,Target,Distance");
+            for (int i = 0; i < store.getNames().size(); ++i)
+                seqs.add(new Seq(store.getNames().get(i), store.getCodes().get(i)));
+            stored_clusters = store.getClusters();
         }
+        int stored = seqs.size();
+        Set<String> names = new HashSet<>();
+        for (Seq seq : seqs) names.add(seq.getName());
+        for (Seq seq : input)
+            if (names.add(seq.getName())) seqs.add(seq);
+        if (!use_stdout) System.out.println((seqs.size() - stored) + " new sequences, " + stored + " stored");
+
+        EdgeWriter writer = null;
+        if (use_stdout)
+            writer = new EdgeWriter(System.out, false);
+        else if (outputFile != null) {
+            boolean exists = outputFile.length() > 0;
+            writer = new EdgeWriter(new BufferedOutputStream(new FileOutputStream(outputFile, true)), true);
+            if (!exists) writer.writeLine("Source,Target,Distance");
+        }
+        Clusters clusters = stored_clusters != null ? new Clusters(seqs.size(), stored_clusters) : new Clusters(seqs.size());
 
-        long total_pairs_to_compute = pairs.size();
-        long current_pair = 0;
-        long startTime = System.nanoTime(), estimatedTime;
+        ArrayList<Seq> compressed = compressColumns(seqs);
+        try {
+            List<Triangle.Tile> tiles = Triangle.rows(stored, seqs.size(), Triangle.tileSize(averageBytes(compressed)));
+            computeTiles(compressed, tiles, writer, clusters, false);
+        } finally {
+            invariant_pair_counts = null;
+            invariant_sites = 0;
+        }
+        closeEdgeWriter(writer);
+        if (clusters_file != null) writeClusters(clusters, seqs);
+        writeMapFile(seqs);
+
+        List<String> store_names = new ArrayList<>(seqs.size());
+        List<byte[]> store_codes = new ArrayList<>(seqs.size());
+        for (Seq seq : seqs) {
+            store_names.add(seq.getName());
+            store_codes.add(seq.getSeq_enc());
+        }
+        new SequenceStore("TN93", edgeThreshold, ambiguityMode(), max_ambiguity_fraction, store_names, store_codes, clusters).write(store_file);
 
-        if (!use_stdout) System.out.println("Submitting jobs...");
+        setChanged();
+        notifyObservers(100);
+    }
 
-        for (Pair<Pair<String, Seq>, Pair<String, Seq>> pair : pairs) {
-            final Pair<String, Seq> seq1 = pair.first;
-            final Pair<String, Seq> seq2 = pair.second;
-            futures.add(executor.submit( () -> {
-                double d = tn93(seq1.second, seq2.second);
-                if (d == -0) d = 0;
-                if (d < this.edgeThreshold)
-                    if (use_stdout)
-                        System.out.println(String.format("%s,%s,%f", seq1.first, seq2.first, d));
-                    else
-                        writerRef.get().println(String.format("%s,%s,%f", seq1.first, seq2.first, d));
-                return new Triplet<>(0, 0, d);
-            }));
-
-            if (futures.size() > 1000 || total_pairs_to_compute < 1000 ) {
-                for (Future<Triplet<Integer, Integer, Double>> future : futures) {
-                    try {
-                        future.get();
-                    }
-                    catch (InterruptedException | ExecutionException e) {
-                        e.printStackTrace();
+    /**
+     * Measures the pairs of the given tiles on the thread pool. Edges under the threshold go to
+     * writer (the lower index first when lower_first) and to clusters, when not null.
+     */
+    private void computeTiles(ArrayList<Seq> seqs, List<Triangle.Tile> tiles, EdgeWriter writer, Clusters clusters, boolean lower_first) {
+        long total_pairs_to_compute = tiles.stream().mapToLong(Triangle.Tile::pairs).sum();
+        AtomicLong pairs_done = new AtomicLong();
+        long startTime = System.nanoTime();
+        double threshold = scanThreshold();
+
+        if (!use_stdout) System.out.println("Computing " + tiles.size() + " tiles on " + Math.max(1, cores) + " threads...");
+        Triangle.run(tiles, cores, tile -> {
+            EdgeBuffer report = writer != null ? writer.buffer() : null;
+            for (int i = tile.rowFrom; i < tile.rowTo; ++i) {
+                Seq seq1 = seqs.get(i);
+                for (int j = tile.colFrom, end = tile.colEnd(i); j < end; ++j) {
+                    double d = tn93(seq1, seqs.get(j), threshold);
+                    if (d == -0) d = 0;
+                    if (reported(d)) {
+                        if (clusters != null) clusters.addEdge(i, j);
+                        if (report == null) continue;
+                        if (lower_first)
+                            appendEdge(report, seqs, j, i, d);
+                        else
+                            appendEdge(report, seqs, i, j, d);
+                        if (report.isFull()) {
+                            writer.write(report);
+                            report = writer.buffer();
+                        }
                     }
-    
-                    current_pair++;
-                    update_percent_complete(total_pairs_to_compute, current_pair, startTime); 
                 }
-                futures.clear();
             }
+            if (report != null) writer.write(report);
+            long pairs = tile.pairs();
+            long done = pairs_done.addAndGet(pairs);
+            update_percent_complete(total_pairs_to_compute, done - pairs, done, startTime);
+        });
+    }
+
+    /**
+     * Writer for the edge list, or null when only clusters are written.
+     */
+    private EdgeWriter edgeWriter() throws IOException {
+        if (use_stdout) return new EdgeWriter(System.out, false);
+        if (outputFile == null) return null;
+        return new EdgeWriter(new BufferedOutputStream(new FileOutputStream(outputFile)), true);
+    }
+
+    /**
+     * Header line of the edge list, or the name table of a binary one.
+     */
+    private void writeHeader(EdgeWriter writer, List<Seq> seqs) {
+        if (writer == null) return;
+        if (binary) {
+            List<String> names = new ArrayList<>(seqs.size());
+            for (Seq seq : seqs) names.add(seq.getName());
+            writer.write(writer.buffer().append(BinaryEdges.header(names, 0)));
         }
+        else writer.writeLine("Source,Target,Distance");
+    }
 
-        for (Future<Triplet<Integer, Integer, Double>> future : futures) {
-            try {
-                future.get();         
-            }
-            catch (InterruptedException | ExecutionException e) {
-                e.printStackTrace();
+    private static void closeEdgeWriter(EdgeWriter writer) {
+        if (writer == null) return;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //output a mapfile between index and name
+    private void writeMapFile(List<Seq> seqs) {
+        if (!enumerate_sequences || outputFile == null) return;
+        try {
+            PrintWriter mapfile = new PrintWriter(new BufferedWriter(new FileWriter(outputFile + ".map")));
+            for (int i = 0; i < seqs.size(); ++i) {
+                mapfile.println(i + "," + seqs.get(i).getName());
             }
+            mapfile.flush();
+            mapfile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            current_pair++;
-            update_percent_complete(total_pairs_to_compute, current_pair, startTime); 
+    private void writeClusters(Clusters clusters, List<Seq> seqs) {
+        if (clusters == null) return;
+        try {
+            clusters.write(clusters_file, i -> seqs.get(i).getName());
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+    }
 
-        executor.shutdown();
-        if (!use_stdout) {
-            writerRef.get().flush();
-            writerRef.get().close();
+    /**
+     * Original indices of each group of sequences with identical sites, in order of first
+     * occurrence. Without collapse_identical every sequence is a group of its own.
+     */
+    private int[][] identicalGroups(List<Seq> seqs) {
+        int[][] groups;
+        if (!collapse_identical) {
+            groups = new int[seqs.size()][];
+            for (int i = 0; i < seqs.size(); ++i) groups[i] = new int[] {i};
+            return groups;
         }
-        setChanged();
-        notifyObservers(100);
-        return;
+        Map<SitesKey, List<Integer>> members = new LinkedHashMap<>();
+        for (int i = 0; i < seqs.size(); ++i)
+            members.computeIfAbsent(new SitesKey(seqs.get(i)), k -> new ArrayList<>()).add(i);
+        groups = new int[members.size()][];
+        int g = 0;
+        for (List<Integer> group : members.values())
+            groups[g++] = group.stream().mapToInt(Integer::intValue).toArray();
+        if (!use_stdout && groups.length < seqs.size())
+            System.out.println("Collapsed " + seqs.size() + " sequences into " + groups.length + " unique sequences");
+        return groups;
+    }
+
+    private static ArrayList<Seq> representatives(List<Seq> seqs, int[][] groups) {
+        ArrayList<Seq> reps = new ArrayList<>(groups.length);
+        for (int[] group : groups) reps.add(seqs.get(group[0]));
+        return reps;
     }
 
+    private static class SitesKey {
+        final Seq seq;
+        final int hash;
 
-    public void tn93_sequential_pairs(ArrayList<Pair<Pair<String, Seq>, Pair<String, Seq>>> pairs) {
-        PrintWriter f = null;
-        //only write headers if not using std out.
-        if (!use_stdout) {
+        SitesKey(Seq seq) {
+            this.seq = seq;
+            this.hash = seq.sitesHash();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof SitesKey && hash == ((SitesKey) o).hash && seq.sameSites(((SitesKey) o).seq);
+        }
+    }
+
+    /**
+     * One line per pair of members of two groups, the later sequence first as in the triangle scan.
+     */
+    private void appendEdges(EdgeBuffer report, List<Seq> seqs, int[] group1, int[] group2, double d) {
+        for (int a : group1)
+            for (int b : group2)
+                appendEdge(report, seqs, Math.max(a, b), Math.min(a, b), d);
+    }
+
+    private void appendCopyEdges(EdgeBuffer report, List<Seq> seqs, int[] group, double d) {
+        for (int x = 1; x < group.length; ++x)
+            for (int y = 0; y < x; ++y)
+                appendEdge(report, seqs, group[x], group[y], d);
+    }
+
+    private void appendEdge(EdgeBuffer report, List<Seq> seqs, int i, int j, double d) {
+        if (binary) {
+            report.appendRecord(i, j, (float) d);
+            return;
+        }
+        if (enumerate_sequences)
+            report.appendInt(i).append(',').appendInt(j);
+        else
+            report.append(seqs.get(i).getName()).append(',').append(seqs.get(j).getName());
+        report.append(',').appendDecimal(d, DECIMALS).newLine();
+    }
+
+
+    final static int PAIRS_BATCH = 256;
+    final static long PAIRS_PROGRESS = 100000;
+
+    /**
+     * --pairs mode as a pipeline: this thread parses lines into batches, a fixed set of workers
+     * encodes and measures them, and an EdgeWriter writes the edges. Both hand-offs are bounded
+     * queues, so reading, computing and writing overlap and memory stays flat for any input size.
+     * With one core the edges keep the format of the former sequential pairs path.
+     */
+    public void tn93_pairs(BufferedReader br) throws IOException {
+        int workers = Math.max(1, cores);
+        boolean sequential = cores <= 1;
+        EdgeWriter writer;
+        if (use_stdout)
+            writer = new EdgeWriter(System.out, false);
+        else {
             try {
-                f = new PrintWriter(new BufferedWriter(new FileWriter(outputFile)));
+                writer = new EdgeWriter(new BufferedOutputStream(new FileOutputStream(outputFile)), true);
             } catch (IOException e) {
                 e.printStackTrace();
+                return;
             }
-            f.println("Source,Target,Distance");
         }
-          
-        long total_pairs_to_compute = pairs.size();
-        long current_pair = 0;
-        long startTime = System.nanoTime();
+        if (!use_stdout || !sequential)
+            writer.writeLine("Source,Target,Distance");
+
+        BlockingQueue<List<String[]>> batches = new ArrayBlockingQueue<>(4 * workers);
+        List<String[]> end_of_input = new ArrayList<>();
+        double threshold = scanThreshold();
+        AtomicLong pairs_done = new AtomicLong();
+
+        if (!use_stdout && !sequential) System.out.println("Creating thread pool with " + workers + " threads...");
+        Thread[] pool = new Thread[workers];
+        for (int w = 0; w < workers; ++w) {
+            pool[w] = new Thread(() -> {
+                try {
+                    List<String[]> batch;
+                    while ((batch = batches.take()) != end_of_input) {
+                        EdgeBuffer report = writer.buffer();
+                        for (String[] fields : batch) {
+                            double d = tn93(new Seq(fields[0], fields[1]), new Seq(fields[2], fields[3]), threshold);
+                            if (d == -0) d = 0;
+                            if (!reported(d)) continue;
+                            if (sequential)
+                                report.append(fields[0]).append(',').append(fields[2]).append(',').append(Double.toString(d)).newLine();
+                            else
+                                report.append(fields[0]).append(',').append(fields[2]).append(',').appendDecimal(d, DECIMALS).newLine();
+                        }
+                        writer.write(report);
+                        long done = pairs_done.addAndGet(batch.size());
+                        if (!use_stdout && done / PAIRS_PROGRESS != (done - batch.size()) / PAIRS_PROGRESS)
+                            System.out.println("Processed " + done + " pairs");
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }, "tn93-pairs-" + w);
+            pool[w].start();
+        }
 
-        for (Pair<Pair<String, Seq>, Pair<String, Seq>> pair : pairs) {
-            final Pair<String, Seq> seq1 = pair.first;
-            final Pair<String, Seq> seq2 = pair.second;
-            double distance = tn93(seq1.second, seq2.second);
-            if (distance == -0) distance = 0;
-            if (distance <= edgeThreshold) {
-                if (use_stdout)
-                    System.out.println(seq1.first + "," + seq2.first + "," + distance);
-                else
-                    f.println(seq1.first + "," + seq2.first + "," + distance);
+        try {
+            String line;
+            List<String[]> batch = new ArrayList<>(PAIRS_BATCH);
+            while ((line = br.readLine()) != null) {
+                if(line.length() == 0) continue;
+                String[] fields = line.split(",");
+                if (fields.length != 4) {
+                    System.err.println("Error: expected 4 fields per line, got " + fields.length);
+                    System.exit(1);
+                }
+                batch.add(fields);
+                if (batch.size() >= PAIRS_BATCH) {
+                    batches.put(batch);
+                    batch = new ArrayList<>(PAIRS_BATCH);
+                }
             }
-            current_pair++;
-            update_percent_complete(total_pairs_to_compute, current_pair, startTime);
-        }
-        if (!use_stdout) {
-            f.flush();
-            f.close();
+            if (batch.size() > 0) batches.put(batch);
+            for (int w = 0; w < workers; ++w) batches.put(end_of_input);
+            for (Thread worker : pool) worker.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
         }
+        writer.close();
         setChanged();
         notifyObservers(100);
-        return;
     }
 
 
-    private boolean resolvable(int c1, int c2) {
+    private static boolean resolvable(int c1, int c2) {
         // like countNucl_resolve, but returns true if a non-average resolution is possible
         if (c1 < 4 && c2 < 4) return false;
         if (c1 == 17 || c2 == 17) return false;
@@ -560,24 +1271,47 @@ public class TN93 extends Observable {
         return false;
     }
 
-    private boolean exceeds_ambig_threshold(Seq s1, Seq s2, double max_ambiguity_fraction) {
+    private static boolean exceeds_ambig_threshold(int[] code_pair_counts, double max_ambiguity_fraction) {
         int ambigs_count = 0;
-        int scan_length = Math.min(s1.getSeq_enc().length, s2.getSeq_enc().length);
         int total_non_gap = 0;
-        for (int i = 0; i < scan_length; ++i) {
-            int c1 = s1.getSeq_enc()[i];
-            int c2 = s2.getSeq_enc()[i];
-            if (resolvable(c1, c2)) {
-                ambigs_count++;
-            }
-            if (c1 != 17 && c2 != 17) {
-                total_non_gap++;
+        for (int c1 = 0; c1 < CODES; ++c1) {
+            for (int c2 = 0; c2 < CODES; ++c2) {
+                int n = code_pair_counts[c1 * CODES + c2];
+                if (resolvableTable[c1 * CODES + c2]) {
+                    ambigs_count += n;
+                }
+                if (c1 != Seq.Gap && c2 != Seq.Gap) {
+                    total_non_gap += n;
+                }
             }
         }
         return total_non_gap * max_ambiguity_fraction <= ambigs_count;
     }
 
 
+    /**
+     * Progress for work that completes in blocks of pairs; reports each whole percent crossed.
+     */
+    private synchronized void update_percent_complete(long total_pairs_to_compute, long pairs_before, long pairs_after, long startTime) {
+        if (total_pairs_to_compute == 0) return;
+        int percBefore = (int) (pairs_before * 100 / total_pairs_to_compute);
+        int percCompleted = (int) (pairs_after * 100 / total_pairs_to_compute);
+        if (percCompleted == percBefore) return;
+        long estimatedTime = System.nanoTime() - startTime;
+
+        if (!use_stdout) System.out.print(String.format("%d%% completed in ", percCompleted));
+        if (!use_stdout) System.out.print(TimeUnit.SECONDS.convert(estimatedTime, TimeUnit.NANOSECONDS));
+        if (!use_stdout) System.out.println(" sec                                ");
+        setChanged();
+        notifyObservers(percCompleted);
+    }
+
+    private static long averageBytes(List<Seq> seqs) {
+        long bytes = 0;
+        for (Seq seq : seqs) bytes += seq.bytes();
+        return seqs.isEmpty() ? 0 : bytes / seqs.size();
+    }
+
     private void update_percent_complete(long total_pairs_to_compute, long current_pair, long startTime) {
         long estimatedTime;
         int percCompleted;
@@ -606,7 +1340,72 @@ public class TN93 extends Observable {
      * @return
      */
     double tn93(Seq s1, Seq s2) {
-        double[][] nucl_pair_counts = countPairwiseNucl(s1, s2);
+        return tn93(s1, s2, Double.POSITIVE_INFINITY);
+    }
+
+
+    // Returned by tn93(s1, s2, threshold) when the scan stopped early; never reported as an edge.
+    final static double ABOVE_THRESHOLD = Double.POSITIVE_INFINITY;
+    final static int EARLY_EXIT_CHUNK = 256;
+    // Slack on the early exit test so rounding in the distance formula cannot matter
+    private final static double EARLY_EXIT_MARGIN = 1e-9;
+
+    private double scanThreshold() {
+        return early_exit ? edgeThreshold : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Whether a pair d apart is an edge: at most edgeThreshold, as the sequential scan has always
+     * had it. Every engine path (parallel, tiles, nearest, pairs, workers, Hive) decides with this.
+     */
+    boolean reported(double d) {
+        return d <= edgeThreshold;
+    }
+
+    /**
+     * Same as tn93(s1, s2), except that it returns ABOVE_THRESHOLD as soon as the distance is
+     * proven to be above threshold. The TN93 (and K2P) distance is never below the proportion of
+     * mismatched weight, so the alignment is scanned in chunks and the scan stops once the
+     * unambiguous mismatches seen so far exceed that proportion of the most weight the pair can reach.
+     */
+    double tn93(Seq s1, Seq s2, double threshold) {
+        int[] code_pair_counts = invariant_pair_counts != null ? invariant_pair_counts.clone() : new int[CODES * CODES];
+        int L = Math.min(s1.length(), s2.length());
+        if (threshold >= 1) {                                   // mismatch proportion never exceeds 1
+            countCodePairs(s1, s2, 0, L, code_pair_counts);
+        }
+        else {
+            for (int from = 0, to; from < L; from = to) {
+                to = Math.min(L, from + EARLY_EXIT_CHUNK);
+                countCodePairs(s1, s2, from, to, code_pair_counts);
+                if (to < L && provenAbove(code_pair_counts, invariant_sites + to, L - to, threshold))
+                    return ABOVE_THRESHOLD;
+            }
+        }
+        return tn93(foldCodePairs(code_pair_counts, pairTable(code_pair_counts)));
+    }
+
+
+    /**
+     * A/C/G/T pairs weigh exactly 1 in every ambiguity mode, both gaps weigh 0 and every other
+     * pair at most 1, so this holds whichever table the pair ends up folded with.
+     */
+    private static boolean provenAbove(int[] code_pair_counts, int scanned, int remaining, double threshold) {
+        int acgt = 0, mismatches = 0;
+        for (int a = 0; a < 4; a++) {
+            for (int b = 0; b < 4; b++) {
+                int n = code_pair_counts[a * CODES + b];
+                acgt += n;
+                if (a != b) mismatches += n;
+            }
+        }
+        int other = scanned - acgt - code_pair_counts[Seq.Gap * CODES + Seq.Gap];
+        double max_weight = (double) acgt + other + remaining;
+        return mismatches > (threshold + EARLY_EXIT_MARGIN) * max_weight;
+    }
+
+
+    private static double tn93(double[][] nucl_pair_counts) {
         double[] nucl_counts = getNuclCounts(nucl_pair_counts);
 
         double total_non_gap = 2.0 / Arrays.stream(nucl_counts).sum();
@@ -650,27 +1449,127 @@ public class TN93 extends Observable {
     }
 
 
-    private double[][] countPairwiseNucl(Seq s1, Seq s2) {
-        double nucl_pair_counts[][] = new double[4][4];
-        if ("resolve".equals(ambiguityHandling)) {
-            if (max_ambiguity_fraction != -1)
-                if (exceeds_ambig_threshold(s1, s2, max_ambiguity_fraction)){
-                    return countNucl_average(s1.getSeq_enc(), s2.getSeq_enc(), nucl_pair_counts);}
-            return countNucl_resolve(s1.getSeq_enc(), s2.getSeq_enc(), nucl_pair_counts);
-        }
-        else if ("average".equals(ambiguityHandling))
-            return countNucl_average(s1.getSeq_enc(), s2.getSeq_enc(), nucl_pair_counts);
+    /**
+     * The ambiguity mode pairTable folds with; any other setting resolves.
+     */
+    private String ambiguityMode() {
+        if ("average".equals(ambiguityHandling) || "gapmm".equals(ambiguityHandling) || "skip".equals(ambiguityHandling))
+            return ambiguityHandling;
+        return "resolve";
+    }
+
+    private double[][] pairTable(int[] code_pair_counts) {
+        if ("average".equals(ambiguityHandling))
+            return averageTable;
         else if ("gapmm".equals(ambiguityHandling))
-            return countNucl_gapmm(s1.getSeq_enc(), s2.getSeq_enc(), nucl_pair_counts);
+            return gapmmTable;
         else if ("skip".equals(ambiguityHandling))
-            return countNucl_skip(s1.getSeq_enc(), s2.getSeq_enc(), nucl_pair_counts);
-        else
-        {
-            if (max_ambiguity_fraction != -1)
-                if (exceeds_ambig_threshold(s1, s2, max_ambiguity_fraction))
-                    return countNucl_average(s1.getSeq_enc(), s2.getSeq_enc(), nucl_pair_counts);
-            return countNucl_resolve(s1.getSeq_enc(), s2.getSeq_enc(), nucl_pair_counts);
+            return skipTable;
+        // "resolve" and the default
+        if (max_ambiguity_fraction != -1)
+            if (exceeds_ambig_threshold(code_pair_counts, max_ambiguity_fraction))
+                return averageTable;
+        return resolveTable;
+    }
+
+
+    /**
+     * Adds the (c1, c2) code pairs of sites [from, to) of two aligned sequences to a histogram
+     * indexed by c1 * CODES + c2. This is the only per-site work; everything else is done per code pair.
+     * Packed sequences are counted from their A/C/G/T planes first, then their other sites are moved
+     * from the pair they were read as to their real pair.
+     */
+    static void countCodePairs(Seq s1, Seq s2, int from, int to, int[] code_pair_counts) {
+        if (s1.isPacked() && s2.isPacked()) {
+            countPlanes(s1.getAcgt(), s2.getAcgt(), from, to, code_pair_counts);
+        }
+        else if (s1.isPacked()) {
+            long[] p1 = s1.getAcgt();
+            byte[] c2 = s2.getSeq_enc();
+            for (int i = from; i < to; i++)
+                code_pair_counts[Seq.planeCode(p1, i) * CODES + c2[i]]++;
+        }
+        else if (s2.isPacked()) {
+            byte[] c1 = s1.getSeq_enc();
+            long[] p2 = s2.getAcgt();
+            for (int i = from; i < to; i++)
+                code_pair_counts[c1[i] * CODES + Seq.planeCode(p2, i)]++;
+        }
+        else {
+            byte[] c1 = s1.getSeq_enc();
+            byte[] c2 = s2.getSeq_enc();
+            for (int i = from; i < to; i++)
+                code_pair_counts[c1[i] * CODES + c2[i]]++;
         }
+        if (s1.isPacked() || s2.isPacked())
+            countOtherSites(s1, s2, from, to, code_pair_counts);
+    }
+
+
+    private final static long LOW_BITS = 0x5555555555555555L;
+
+    private static void countPlanes(long[] x, long[] y, int from, int to, int[] code_pair_counts) {
+        if (from >= to) return;
+        long[] xs = new long[4];
+        long[] ys = new long[4];
+        int first = from >>> 5, last = (to - 1) >>> 5;
+        for (int w = first; w <= last; w++) {
+            long valid = LOW_BITS;
+            if (w == first) valid &= -1L << ((from & 31) << 1);
+            if (w == last && (to & 31) != 0) valid &= (1L << ((to & 31) << 1)) - 1;
+            long xw = x[w], yw = y[w];
+            long xl = xw & valid, xh = (xw >>> 1) & valid;
+            long yl = yw & valid, yh = (yw >>> 1) & valid;
+            xs[Seq.A] = ~xh & ~xl & valid; xs[Seq.C] = ~xh & xl; xs[Seq.G] = xh & ~xl; xs[Seq.T] = xh & xl;
+            if (xl == yl && xh == yh) {                          // identical word, only matches
+                for (int a = 0; a < 4; a++)
+                    code_pair_counts[a * CODES + a] += Long.bitCount(xs[a]);
+                continue;
+            }
+            ys[Seq.A] = ~yh & ~yl & valid; ys[Seq.C] = ~yh & yl; ys[Seq.G] = yh & ~yl; ys[Seq.T] = yh & yl;
+            for (int a = 0; a < 4; a++)
+                for (int b = 0; b < 4; b++)
+                    code_pair_counts[a * CODES + b] += Long.bitCount(xs[a] & ys[b]);
+        }
+    }
+
+
+    private final static int[] NO_SITES = new int[0];
+
+    private static void countOtherSites(Seq s1, Seq s2, int from, int to, int[] code_pair_counts) {
+        int[] pos1 = s1.isPacked() ? s1.getOther_pos() : NO_SITES;
+        int[] pos2 = s2.isPacked() ? s2.getOther_pos() : NO_SITES;
+        int i = lowerBound(pos1, from), j = lowerBound(pos2, from);
+        while (true) {
+            int p1 = i < pos1.length ? pos1[i] : Integer.MAX_VALUE;
+            int p2 = j < pos2.length ? pos2[j] : Integer.MAX_VALUE;
+            int p = Math.min(p1, p2);
+            if (p >= to) break;
+            int stored1 = s1.storedCode(p), stored2 = s2.storedCode(p);
+            int c1 = p1 == p ? s1.getOther_code()[i++] : stored1;
+            int c2 = p2 == p ? s2.getOther_code()[j++] : stored2;
+            code_pair_counts[stored1 * CODES + stored2]--;
+            code_pair_counts[c1 * CODES + c2]++;
+        }
+    }
+
+
+    private static int lowerBound(int[] sorted, int key) {
+        int k = Arrays.binarySearch(sorted, key);
+        return k >= 0 ? k : -k - 1;
+    }
+
+
+    private static double[][] foldCodePairs(int[] code_pair_counts, double[][] table) {
+        double[][] nucl_pair_counts = new double[4][4];
+        for (int p = 0; p < code_pair_counts.length; p++) {
+            int n = code_pair_counts[p];
+            if (n == 0) continue;
+            double[] contribution = table[p];
+            for (int m = 0; m < 16; m++)
+                nucl_pair_counts[m >> 2][m & 3] += n * contribution[m];
+        }
+        return nucl_pair_counts;
     }
 
 
@@ -686,7 +1585,7 @@ public class TN93 extends Observable {
     }
 
 
-    private double[][] countNucl_resolve(int[] s1, int[] s2, double[][]nucl_pair_counts) {
+    private static double[][] countNucl_resolve(int[] s1, int[] s2, double[][]nucl_pair_counts) {
         int L = Math.min(s1.length, s2.length);
         for(int i=0; i<L; i++) {
             int c1 = s1[i];
@@ -759,7 +1658,7 @@ public class TN93 extends Observable {
     }
 
 
-    private double[][] countNucl_average(int[] s1, int[] s2, double[][] nucl_pair_counts) {
+    private static double[][] countNucl_average(int[] s1, int[] s2, double[][] nucl_pair_counts) {
         int L = Math.min(s1.length, s2.length);
         for(int i=0; i<L; i++) {
             int c1 = s1[i];
@@ -887,35 +1786,34 @@ public class TN93 extends Observable {
 
     public static ArrayList<Seq> read_seqs(Scanner sc) {
         ArrayList<Seq> seqs = new ArrayList<Seq>();
-        String name="", seq="";
+        String name="";
+        StringBuilder seq = new StringBuilder();
         
         while(sc.hasNextLine()) {
             String line = sc.nextLine().trim();
             if(line.length() == 0) continue;
             if(line.charAt(0)=='>') {
-                if (name.length()!=0) seqs.add(new Seq(name, seq));
+                if (name.length()!=0) seqs.add(new Seq(name, seq.toString()));
                 name = line.substring(1);
-                seq="";
+                seq.setLength(0);
             }
-            else seq=seq.concat(line);
+            else seq.append(line);
         }
-        if(name.length()!=0) seqs.add(new Seq(name, seq));
+        if(name.length()!=0) seqs.add(new Seq(name, seq.toString()));
         return seqs;
     }
 
 
-    private static ArrayList<Seq> read_fasta(File inputFile) throws FileNotFoundException {
-        Scanner sc = new Scanner(inputFile);
-        ArrayList<Seq> a = read_seqs(sc);
-        sc.close();
+    private static ArrayList<Seq> read_fasta(File inputFile) throws IOException {
+        ArrayList<Seq> a = new ArrayList<Seq>();
+        FastaReader.read(inputFile, Seq.encoding, (name, codes) -> a.add(new Seq(name, codes)));
         return a;
     }
 
 
-    private static ArrayList<Seq> read_fasta_stdin() {
-        Scanner sc = new Scanner(System.in);
-        ArrayList<Seq> a = read_seqs(sc);
-        sc.close();
+    private static ArrayList<Seq> read_fasta_stdin() throws IOException {
+        ArrayList<Seq> a = new ArrayList<Seq>();
+        FastaReader.read(System.in, Seq.encoding, (name, codes) -> a.add(new Seq(name, codes)));
         return a;
     }
 }
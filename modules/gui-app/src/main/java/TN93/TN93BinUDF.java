@@ -0,0 +1,86 @@
+package TN93;
+
+import Engine.SeqCache;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DoubleWritable;
+
+/**
+ * tn93_bin(enc1, enc2[, resolveMode[, abiguityFraction]]): TN93 between two sequences stored by
+ * encode_seq. resolveMode is average, resolve, gapmm or skip (default resolve) and
+ * abiguityFraction defaults to no limit, as in TN93UDF; both must be constants.
+ */
+public class TN93BinUDF extends GenericUDF {
+    private transient TN93 tn93;
+    private transient BinaryObjectInspector[] blobOIs;
+    // Blobs map to their decoded sequences, so a blob seen before is measured without decoding
+    private transient SeqCache<Seq> seqs;
+    private transient DoubleWritable result;
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+        if (arguments.length < 2 || arguments.length > 4) {
+            throw new UDFArgumentLengthException(
+                    "tn93_bin() requires 2 to 4 arguments (enc1, enc2[, resolveMode[, abiguityFraction]]), got " + arguments.length);
+        }
+        for (ObjectInspector oi : arguments) {
+            if (oi.getCategory() != Category.PRIMITIVE) {
+                throw new UDFArgumentException("tn93_bin only takes primitive types, got " + oi.getCategory() + ":" + oi.getTypeName());
+            }
+        }
+        blobOIs = new BinaryObjectInspector[2];
+        for (int i = 0; i < 2; i++) {
+            if (((PrimitiveObjectInspector) arguments[i]).getPrimitiveCategory() != PrimitiveCategory.BINARY) {
+                throw new UDFArgumentException("tn93_bin sequences should be binary (encode_seq), got " + arguments[i].getTypeName());
+            }
+            blobOIs[i] = (BinaryObjectInspector) arguments[i];
+        }
+        tn93 = new TN93();
+        if (arguments.length > 2)
+            tn93.setAmbiguityHandling(PrimitiveObjectInspectorUtils.getString(constant(arguments, 2, "resolveMode"), (PrimitiveObjectInspector) arguments[2]));
+        if (arguments.length > 3)
+            tn93.setMaxAmbiguityFraction(PrimitiveObjectInspectorUtils.getDouble(constant(arguments, 3, "abiguityFraction"), (PrimitiveObjectInspector) arguments[3]));
+        seqs = SeqBlob.cache();
+        result = new DoubleWritable();
+        return PrimitiveObjectInspectorFactory.writableDoubleObjectInspector;
+    }
+
+    private static Object constant(ObjectInspector[] arguments, int i, String name) throws UDFArgumentException {
+        if (!ObjectInspectorUtils.isConstantObjectInspector(arguments[i]))
+            throw new UDFArgumentException("tn93_bin " + name + " must be a constant");
+        return ((ConstantObjectInspector) arguments[i]).getWritableConstantValue();
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] arguments) throws HiveException {
+        Seq seq1 = seq(arguments, 0);
+        Seq seq2 = seq(arguments, 1);
+        if (seq1 == null || seq2 == null) return null;
+        result.set(tn93.tn93(seq1, seq2));
+        return result;
+    }
+
+    private Seq seq(DeferredObject[] arguments, int i) throws HiveException {
+        Object o = arguments[i] != null ? arguments[i].get() : null;
+        if (o == null) return null;
+        BytesWritable blob = blobOIs[i].getPrimitiveWritableObject(o);
+        return seqs.get(blob.getBytes(), 0, blob.getLength());
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+        return "tn93_bin(" + String.join(", ", children) + ")";
+    }
+}
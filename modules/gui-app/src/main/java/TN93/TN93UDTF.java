@@ -0,0 +1,129 @@
+package TN93;
+
+import Engine.Edges;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDTF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector.Category;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * All-vs-all TN93 within each group of rows, so Hive never builds the self-join. Arguments are
+ * group, name, seq, threshold, and optionally resolveMode (average, resolve, gapmm, skip;
+ * default resolve), abiguityFraction (default no limit) and cores (default 1). Emits one
+ * (group_key, source, target, distance) row per pair of a group at most threshold apart
+ * (distance <= threshold, the same rule as -t on the command line). The groups are measured one
+ * after another on one pool of cores threads, kept for the whole task.
+ * The rows of a group must arrive together, e.g.
+ * <pre>
+ * SELECT tn93_group(subtype, name, seq, 0.015) FROM
+ *   (SELECT subtype, name, seq FROM seqs DISTRIBUTE BY subtype SORT BY subtype) s;
+ * </pre>
+ */
+public class TN93UDTF extends GenericUDTF {
+    private transient PrimitiveObjectInspector[] inputOIs;
+    private transient TN93 tn93;
+    private transient ForkJoinPool pool;
+    // The group being collected
+    private transient String group;
+    private transient ArrayList<Seq> seqs;
+    private transient Object[] row;
+
+    @Override
+    public StructObjectInspector initialize(StructObjectInspector argOIs) throws UDFArgumentException {
+        List<? extends StructField> fields = argOIs.getAllStructFieldRefs();
+        if (fields.size() < 4 || fields.size() > 7) {
+            throw new UDFArgumentLengthException(
+                    "tn93_group() requires 4 to 7 arguments (group, name, seq, threshold[, resolveMode[, abiguityFraction[, cores]]]), got "
+                            + fields.size());
+        }
+        inputOIs = new PrimitiveObjectInspector[fields.size()];
+        for (int i = 0; i < fields.size(); i++) {
+            ObjectInspector oi = fields.get(i).getFieldObjectInspector();
+            if (oi.getCategory() != Category.PRIMITIVE) {
+                throw new UDFArgumentException("tn93_group only takes primitive types, got " + oi.getCategory() + ":" + oi.getTypeName());
+            }
+            inputOIs[i] = (PrimitiveObjectInspector) oi;
+        }
+
+        tn93 = new TN93();
+        tn93.setUseStdout(true);                                // keeps progress output out of the task log
+        tn93.setEdgeThreshold((float) PrimitiveObjectInspectorUtils.getDouble(constant(3, "threshold"), inputOIs[3]));
+        if (inputOIs.length > 4)
+            tn93.setAmbiguityHandling(PrimitiveObjectInspectorUtils.getString(constant(4, "resolveMode"), inputOIs[4]));
+        if (inputOIs.length > 5)
+            tn93.setMaxAmbiguityFraction(PrimitiveObjectInspectorUtils.getDouble(constant(5, "abiguityFraction"), inputOIs[5]));
+        int cores = 1;
+        if (inputOIs.length > 6)
+            cores = PrimitiveObjectInspectorUtils.getInt(constant(6, "cores"), inputOIs[6]);
+        tn93.setCores(cores);
+        pool = new ForkJoinPool(Math.max(1, cores));
+        seqs = new ArrayList<>();
+        row = new Object[4];
+
+        List<String> names = Arrays.asList("group_key", "source", "target", "distance");
+        List<ObjectInspector> outputOIs = Arrays.asList(
+                PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                PrimitiveObjectInspectorFactory.javaDoubleObjectInspector);
+        return ObjectInspectorFactory.getStandardStructObjectInspector(names, outputOIs);
+    }
+
+    private Object constant(int i, String name) throws UDFArgumentException {
+        if (!ObjectInspectorUtils.isConstantObjectInspector(inputOIs[i]))
+            throw new UDFArgumentException("tn93_group " + name + " must be a constant");
+        return ((ConstantObjectInspector) inputOIs[i]).getWritableConstantValue();
+    }
+
+    @Override
+    public void process(Object[] args) throws HiveException {
+        String key = PrimitiveObjectInspectorUtils.getString(args[0], inputOIs[0]);
+        if (!seqs.isEmpty() && !Objects.equals(key, group)) flush();
+        group = key;
+        String name = PrimitiveObjectInspectorUtils.getString(args[1], inputOIs[1]);
+        String seq = PrimitiveObjectInspectorUtils.getString(args[2], inputOIs[2]);
+        if (seq != null) seqs.add(new Seq(name, seq));
+    }
+
+    @Override
+    public void close() throws HiveException {
+        try {
+            flush();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Measures the collected group and emits its edges.
+     */
+    private void flush() throws HiveException {
+        if (seqs.size() > 1) {
+            Edges edges = tn93.tn93_edges(seqs, pool);
+            row[0] = group;
+            for (int k = 0; k < edges.size(); ++k) {
+                row[1] = seqs.get(edges.source(k)).getName();
+                row[2] = seqs.get(edges.target(k)).getName();
+                row[3] = edges.distance(k);
+                forward(row);
+            }
+        }
+        seqs = new ArrayList<>();
+    }
+}
@@ -0,0 +1,118 @@
+package TN93;
+
+import Engine.SeqCache;
+import org.apache.hadoop.hive.common.type.HiveDecimal;
+import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.DoubleColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.VectorExpressionDescriptor;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.hadoop.hive.ql.exec.vector.expressions.VectorExpression;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Vectorized TN93UDF: measures the sequence pairs of two string columns a batch at a time into
+ * a double column, reading the sequence bytes in place. Hive picks it for TN93UDF calls with
+ * two sequence columns and constant resolveMode and abiguityFraction, as TN93UDF requires.
+ */
+public class TN93VectorExpression extends VectorExpression {
+    private static final long serialVersionUID = 1L;
+
+    private final int colNum1;
+    private final int colNum2;
+    private final String ambiguity_handling;
+    private final double max_ambiguity_fraction;
+
+    private transient TN93 tn93;
+    private transient SeqCache<Seq> seqs;
+
+    public TN93VectorExpression(int colNum1, int colNum2, byte[] ambiguityHandling, HiveDecimal maxAmbiguityFraction, int outputColumnNum) {
+        super(outputColumnNum);
+        this.colNum1 = colNum1;
+        this.colNum2 = colNum2;
+        this.ambiguity_handling = new String(ambiguityHandling, StandardCharsets.UTF_8);
+        this.max_ambiguity_fraction = maxAmbiguityFraction.doubleValue();
+    }
+
+    public TN93VectorExpression() {
+        super();
+        colNum1 = -1;
+        colNum2 = -1;
+        ambiguity_handling = null;
+        max_ambiguity_fraction = -1;
+    }
+
+    @Override
+    public void transientInit() throws HiveException {
+        super.transientInit();
+        tn93 = new TN93();
+        tn93.setAmbiguityHandling(ambiguity_handling);
+        tn93.setMaxAmbiguityFraction(max_ambiguity_fraction);
+        seqs = Seq.textCache();
+    }
+
+    @Override
+    public void evaluate(VectorizedRowBatch batch) throws HiveException {
+        if (childExpressions != null) super.evaluateChildren(batch);
+        if (tn93 == null) transientInit();
+
+        BytesColumnVector in1 = (BytesColumnVector) batch.cols[colNum1];
+        BytesColumnVector in2 = (BytesColumnVector) batch.cols[colNum2];
+        DoubleColumnVector out = (DoubleColumnVector) batch.cols[outputColumnNum];
+        int n = batch.size;
+        if (n == 0) return;
+
+        if (in1.isRepeating && in2.isRepeating) {
+            out.isRepeating = true;
+            evaluateRow(in1, in2, out, 0);
+            return;
+        }
+        out.isRepeating = false;
+        if (batch.selectedInUse) {
+            for (int k = 0; k < n; ++k)
+                evaluateRow(in1, in2, out, batch.selected[k]);
+        } else {
+            for (int i = 0; i < n; ++i)
+                evaluateRow(in1, in2, out, i);
+        }
+    }
+
+    private void evaluateRow(BytesColumnVector in1, BytesColumnVector in2, DoubleColumnVector out, int i) {
+        int i1 = in1.isRepeating ? 0 : i;
+        int i2 = in2.isRepeating ? 0 : i;
+        if (!in1.noNulls && in1.isNull[i1] || !in2.noNulls && in2.isNull[i2]) {
+            out.isNull[i] = true;
+            out.noNulls = false;
+            return;
+        }
+        Seq seq1 = seqs.get(in1.vector[i1], in1.start[i1], in1.length[i1]);
+        Seq seq2 = seqs.get(in2.vector[i2], in2.start[i2], in2.length[i2]);
+        out.isNull[i] = false;
+        out.vector[i] = tn93.tn93(seq1, seq2);
+    }
+
+    @Override
+    public String vectorExpressionParameters() {
+        return getColumnParamString(0, colNum1) + ", " + getColumnParamString(1, colNum2)
+                + ", " + ambiguity_handling + ", " + max_ambiguity_fraction;
+    }
+
+    @Override
+    public VectorExpressionDescriptor.Descriptor getDescriptor() {
+        return new VectorExpressionDescriptor.Builder()
+                .setMode(VectorExpressionDescriptor.Mode.PROJECTION)
+                .setNumArguments(4)
+                .setArgumentTypes(
+                        VectorExpressionDescriptor.ArgumentType.STRING_FAMILY,
+                        VectorExpressionDescriptor.ArgumentType.STRING_FAMILY,
+                        VectorExpressionDescriptor.ArgumentType.STRING_FAMILY,
+                        VectorExpressionDescriptor.ArgumentType.DECIMAL)
+                .setInputExpressionTypes(
+                        VectorExpressionDescriptor.InputExpressionType.COLUMN,
+                        VectorExpressionDescriptor.InputExpressionType.COLUMN,
+                        VectorExpressionDescriptor.InputExpressionType.SCALAR,
+                        VectorExpressionDescriptor.InputExpressionType.SCALAR)
+                .build();
+    }
+}
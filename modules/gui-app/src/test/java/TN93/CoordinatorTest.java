@@ -0,0 +1,122 @@
+package TN93;
+
+import Engine.Coordinator;
+import Engine.Worker;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A coordinator on localhost with several workers writes the same edges as a single-process run.
+ */
+public class CoordinatorTest {
+    // More sequences than one coordinator tile holds, so the workers share several tiles
+    private final static int SEQUENCES = Coordinator.TILE_SIZE * 2 + 50;
+    private final static int LENGTH = 120;
+    private final static int WORKERS = 3;
+
+    @Test(timeout = 300000)
+    public void workersWriteTheSingleProcessEdges() throws Exception {
+        File dir = Files.createTempDirectory("seqruler-coordinator").toFile();
+        File fasta = new File(dir, "seqs.fas");
+        writeSequences(fasta, new Random(17));
+
+        File single = new File(dir, "single.csv");
+        TN93 local = tn93(fasta, single);
+        local.setCores(2);
+        local.tn93Fasta();
+
+        File distributed = new File(dir, "distributed.csv");
+        TN93 coordinator = tn93(fasta, distributed);
+        int port = freePort();
+        coordinator.setCoordinatorPort(port);
+        Thread run = new Thread(coordinator::tn93Fasta, "test-coordinator");
+        run.start();
+        Thread[] workers = new Thread[WORKERS];
+        for (int w = 0; w < WORKERS; ++w) {
+            workers[w] = new Thread(() -> work(port, run), "test-worker-" + w);
+            workers[w].start();
+        }
+        run.join();
+        for (Thread worker : workers) worker.join();
+
+        Set<String> expected = edges(single);
+        assertTrue("too few edges to compare: " + expected.size(), expected.size() > SEQUENCES);
+        assertEquals(expected, edges(distributed));
+    }
+
+    private static TN93 tn93(File fasta, File out) {
+        TN93 tn93 = new TN93();
+        tn93.setInputFile(fasta);
+        tn93.setOutputFile(out);
+        tn93.setEdgeThreshold(0.03f);
+        return tn93;
+    }
+
+    /**
+     * Works for the coordinator until it is done, connecting again while it is not listening yet.
+     */
+    private static void work(int port, Thread coordinator) {
+        while (coordinator.isAlive()) {
+            try {
+                Worker.run("localhost", port, 2, (method, in) -> TN93.workerJob(in));
+                return;
+            } catch (ConnectException e) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Clusters of mutated copies of a few ancestors, with some ambiguities and terminal gaps.
+     */
+    private static void writeSequences(File fasta, Random random) throws IOException {
+        String bases = "ACGT", ambiguities = "RYN";
+        char[][] ancestors = new char[8][LENGTH];
+        for (char[] ancestor : ancestors)
+            for (int k = 0; k < LENGTH; ++k) ancestor[k] = bases.charAt(random.nextInt(4));
+        try (PrintWriter out = new PrintWriter(fasta, "UTF-8")) {
+            for (int i = 0; i < SEQUENCES; ++i) {
+                char[] seq = ancestors[random.nextInt(ancestors.length)].clone();
+                for (int k = 0; k < LENGTH; ++k) {
+                    double r = random.nextDouble();
+                    if (r < 0.02) seq[k] = bases.charAt(random.nextInt(4));
+                    else if (r < 0.025) seq[k] = ambiguities.charAt(random.nextInt(3));
+                }
+                for (int k = random.nextInt(4); k > 0; --k) seq[k - 1] = '-';
+                out.println(">s" + i);
+                out.println(new String(seq));
+            }
+        }
+    }
+
+    private static Set<String> edges(File csv) throws IOException {
+        List<String> lines = Files.readAllLines(csv.toPath());
+        assertEquals("Source,Target,Distance", lines.get(0));
+        return new HashSet<>(lines.subList(1, lines.size()));
+    }
+}
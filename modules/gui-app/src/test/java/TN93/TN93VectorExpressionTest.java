@@ -0,0 +1,205 @@
+package TN93;
+
+import org.apache.hadoop.hive.common.type.HiveDecimal;
+import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.DoubleColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredJavaObject;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredObject;
+import org.apache.hadoop.hive.serde2.io.HiveDecimalWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * TN93VectorExpression gives, row for row, what TN93UDF.evaluate gives for the same pair,
+ * whether the inputs are repeating, have nulls or come with a selection.
+ */
+public class TN93VectorExpressionTest {
+    private final static int ROWS = 64;
+    private final static String MODE = "resolve", FRACTION = "0.5";
+    // Never a distance, so rows the expression must not touch keep it
+    private final static double UNTOUCHED = -7;
+
+    private final String[] seqs = sequences(new Random(5), 12);
+    private final TN93UDF udf = udf();
+    private final TN93VectorExpression expression = expression();
+
+    @Test
+    public void plainColumns() throws Exception {
+        check(rows(0), rows(1), null, false, false);
+    }
+
+    @Test
+    public void nulls() throws Exception {
+        String[] col1 = rows(0), col2 = rows(1);
+        for (int i = 0; i < ROWS; i += 5) col1[i] = null;
+        for (int i = 0; i < ROWS; i += 7) col2[i] = null;
+        check(col1, col2, null, false, false);
+    }
+
+    @Test
+    public void repeatingFirstColumn() throws Exception {
+        check(repeated(seqs[3]), rows(1), null, true, false);
+    }
+
+    @Test
+    public void repeatingSecondColumnWithNulls() throws Exception {
+        String[] col1 = rows(2);
+        col1[9] = null;
+        check(col1, repeated(seqs[4]), null, false, true);
+    }
+
+    @Test
+    public void bothRepeating() throws Exception {
+        DoubleColumnVector out = check(repeated(seqs[0]), repeated(seqs[1]), null, true, true);
+        assertTrue("output should repeat", out.isRepeating);
+    }
+
+    @Test
+    public void repeatingNull() throws Exception {
+        DoubleColumnVector out = check(repeated(null), rows(1), null, true, false);
+        assertFalse(out.noNulls);
+    }
+
+    @Test
+    public void selectedInUse() throws Exception {
+        String[] col1 = rows(0), col2 = rows(3);
+        col2[6] = null;
+        int[] selected = new int[ROWS / 3];
+        for (int k = 0; k < selected.length; ++k) selected[k] = 3 * k;
+        check(col1, col2, selected, false, false);
+    }
+
+    @Test
+    public void selectedInUseWithRepeating() throws Exception {
+        check(repeated(seqs[5]), rows(2), new int[]{1, 2, 30, 63}, true, false);
+    }
+
+    /**
+     * Runs the expression over one batch of the two columns and checks every row it has to fill
+     * against TN93UDF; rows outside the selection must stay untouched.
+     */
+    private DoubleColumnVector check(String[] col1, String[] col2, int[] selected, boolean repeating1, boolean repeating2) throws Exception {
+        VectorizedRowBatch batch = new VectorizedRowBatch(3, ROWS);
+        batch.cols[0] = column(col1, repeating1);
+        batch.cols[1] = column(col2, repeating2);
+        DoubleColumnVector out = new DoubleColumnVector(ROWS);
+        Arrays.fill(out.vector, UNTOUCHED);
+        batch.cols[2] = out;
+        batch.size = ROWS;
+        if (selected != null) {
+            System.arraycopy(selected, 0, batch.selected, 0, selected.length);
+            batch.size = selected.length;
+            batch.selectedInUse = true;
+        }
+        expression.evaluate(batch);
+
+        boolean[] in_selection = new boolean[ROWS];
+        for (int k = 0; k < batch.size; ++k) in_selection[selected != null ? selected[k] : k] = true;
+        for (int i = 0; i < ROWS; ++i) {
+            int row = out.isRepeating ? 0 : i;
+            if (!in_selection[i]) {
+                if (!out.isRepeating) assertEquals("row " + i + " is not selected", UNTOUCHED, out.vector[i], 0);
+                continue;
+            }
+            String seq1 = col1[repeating1 ? 0 : i], seq2 = col2[repeating2 ? 0 : i];
+            DoubleWritable expected = (DoubleWritable) udf.evaluate(new DeferredObject[]{
+                    new DeferredJavaObject(seq1), new DeferredJavaObject(seq2),
+                    new DeferredJavaObject(MODE), new DeferredJavaObject(FRACTION)});
+            if (expected == null) {
+                assertTrue("row " + i + " should be null", out.isNull[row]);
+                assertFalse("row " + i + " is null", out.noNulls);
+            } else {
+                assertFalse("row " + i + " should not be null", !out.noNulls && out.isNull[row]);
+                assertEquals("row " + i, expected.get(), out.vector[row], 0);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * The column with each value referenced inside a larger buffer, as Hive readers hand them out.
+     */
+    private static BytesColumnVector column(String[] values, boolean repeating) {
+        BytesColumnVector column = new BytesColumnVector(ROWS);
+        column.isRepeating = repeating;
+        for (int i = 0; i < (repeating ? 1 : ROWS); ++i) {
+            if (values[i] == null) {
+                column.isNull[i] = true;
+                column.noNulls = false;
+                continue;
+            }
+            byte[] buffer = ("xx" + values[i] + "yy").getBytes(StandardCharsets.US_ASCII);
+            column.setRef(i, buffer, 2, values[i].length());
+        }
+        return column;
+    }
+
+    private String[] rows(int shift) {
+        String[] rows = new String[ROWS];
+        for (int i = 0; i < ROWS; ++i) rows[i] = seqs[(i * (shift + 1) + shift) % seqs.length];
+        return rows;
+    }
+
+    private static String[] repeated(String value) {
+        String[] rows = new String[ROWS];
+        rows[0] = value;
+        return rows;
+    }
+
+    /**
+     * Related sequences with some ambiguities, lowercase sites and terminal gaps.
+     */
+    private static String[] sequences(Random random, int n) {
+        String sites = "ACGTACGTACGTACGTRYNacgt-";
+        char[] ancestor = new char[300];
+        for (int k = 0; k < ancestor.length; ++k) ancestor[k] = "ACGT".charAt(random.nextInt(4));
+        String[] seqs = new String[n];
+        for (int s = 0; s < n; ++s) {
+            char[] seq = ancestor.clone();
+            for (int k = 0; k < seq.length; ++k)
+                if (random.nextDouble() < 0.05) seq[k] = sites.charAt(random.nextInt(sites.length()));
+            for (int k = random.nextInt(10); k > 0; --k) seq[k - 1] = '-';
+            seqs[s] = new String(seq);
+        }
+        return seqs;
+    }
+
+    private static TN93UDF udf() {
+        TN93UDF udf = new TN93UDF();
+        try {
+            udf.initialize(new ObjectInspector[]{
+                    PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                    PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                    PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+                            TypeInfoFactory.stringTypeInfo, new Text(MODE)),
+                    PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+                            TypeInfoFactory.getDecimalTypeInfo(2, 1), new HiveDecimalWritable(HiveDecimal.create(FRACTION)))});
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return udf;
+    }
+
+    private static TN93VectorExpression expression() {
+        TN93VectorExpression expression = new TN93VectorExpression(0, 1, MODE.getBytes(StandardCharsets.UTF_8), HiveDecimal.create(FRACTION), 2);
+        try {
+            expression.transientInit();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return expression;
+    }
+}